@@ -0,0 +1,424 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmarks the song sheet core with JMH.
+ * Times chord detection, suffix matching, the chord grammar, 
+ * transposition, byte scanning, and full conversions over synthetic 
+ * song sheets: mostly lyrics, dense chords, long lines, huge suffix 
+ * lists, and a document of several megabytes.  Built by the 
+ * <code>bench</code> module into a runnable jar; JMH's GC profiler 
+ * reports the bytes allocated per operation:
+ * <pre>java -jar bench/target/benchmarks.jar [name regex] [-prof gc]</pre>
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SongSheetBench {
+	
+	/* Corpus building blocks */
+	private static final String[] CHORDS = {
+		"A", "Am", "A7", "Bb", "Bbsus", "B", "Bm7", "C", "Cmaj7", "C#m", "D",
+		"Dsus4", "D/F#", "Eb", "E", "Em", "E7", "F", "F#m", "G", "G/B", "Gaug",
+		"Abdim", "(E)"
+	};
+	private static final String[] WORDS = {
+		"Amazing", "grace", "how", "sweet", "the", "sound", "that", "saved", 
+		"a", "wretch", "like", "me", "I", "once", "was", "lost", "but", "now",
+		"am", "found", "Be", "thou", "my", "vision", "A", "light", "to", "see"
+	};
+	private static final String[] EXTENDED_SUFFIXES = {
+		"maj7", "add9", "sus2", "7b9", "13#11", "m7b5", "dim7", "aug", "sus4",
+		"6/9", "m6", "9", "11", "13", "#5", "b5", "m", "#", "b", "/"
+	};
+	
+	/* Options */
+	private SongSheetOptions defaults = null; // the dialog's defaults
+	private SongSheetOptions hugeSuffixes = null; // 520 chord suffixes
+	private SongSheetOptions strict = null; // chords by their grammar
+	
+	/* Corpora */
+	private String lyricSheet = null; // mostly lyrics
+	private String chordSheet = null; // mostly chords
+	private String longLineSheet = null; // lines of several thousand chars
+	private String hugeSheet = null; // several megabytes
+	private String chordLine = null; // a single long line of chords
+	private int[] chordPositions = null; // start of each word of the line
+	// the huge sheet as ASCII bytes outside the heap, as when mapped
+	private ByteBuffer hugeBytes = null;
+	private ByteView hugeView = null;
+	
+	/* Code under test */
+	private String[] legacySuffixes = null;
+	private ChordClassifier classifier = null;
+	private ChordClassifier strictClassifier = null;
+	private ChordGrammar hugeGrammar = null;
+	private ChordTransposer transposer = null;
+	private StringBuilder lineBuf = new StringBuilder();
+	private SongSheetEngine engine = null;
+	private SongSheetEngine strictEngine = null;
+	private SongSheetEngine hugeSuffixesEngine = null;
+	private SongSheetEngine metricsEngine = null;
+	private long chordsCounted = 0; // chords reported to the listener
+	
+	/** Builds the corpora and the code under test.
+	*/
+	@Setup
+	public void setUp() {
+		defaults = new SongSheetOptions(
+			SongSheetOptions.DEFAULT_CHORD_INDICATORS, 2, true, 1, true, false);
+		StringBuilder suffixList = new StringBuilder();
+		for (int i = 0; i < EXTENDED_SUFFIXES.length; i++) {
+			suffixList.append(EXTENDED_SUFFIXES[i]).append(',');
+		}
+		for (int i = 0; i < 500; i++) {
+			suffixList.append("x").append(i).append(',');
+		}
+		hugeSuffixes = new SongSheetOptions(
+			suffixList.toString(), 0, true, 1, true, false);
+		strict = new SongSheetOptions(
+			SongSheetOptions.DEFAULT_CHORD_INDICATORS, 2, true, 1, true, false, 
+			false, true);
+		
+		lyricSheet = createSheet(new Random(1), 2000, 0.1, 60);
+		chordSheet = createSheet(new Random(2), 2000, 0.9, 60);
+		longLineSheet = createSheet(new Random(3), 100, 0.5, 4000);
+		hugeSheet = createSheet(new Random(4), 8 * 1024 * 1024 / 35, 0.5, 60);
+		chordLine = createLine(new Random(5), true, 4000);
+		chordPositions = wordPositions(chordLine);
+		hugeBytes = ByteBuffer.allocateDirect(hugeSheet.length());
+		for (int i = 0; i < hugeSheet.length(); i++) {
+			hugeBytes.put(i, (byte) hugeSheet.charAt(i));
+		}
+		hugeView = new ByteView(hugeBytes);
+		
+		legacySuffixes = ChordClassifier.createArrayFromList(suffixList.toString());
+		classifier = new ChordClassifier(
+			defaults.getChordSuffixes(), defaults.getThreshold());
+		strictClassifier = new ChordClassifier(
+			defaults.getChordSuffixes(), new ChordGrammar(), defaults.getThreshold());
+		hugeGrammar = new ChordGrammar(suffixList.toString());
+		transposer = new ChordTransposer(2, true);
+		engine = new SongSheetEngine(defaults);
+		strictEngine = new SongSheetEngine(strict);
+		hugeSuffixesEngine = new SongSheetEngine(hugeSuffixes);
+		metricsEngine = new SongSheetEngine(defaults, 
+			new SongSheetMetricsListener() {
+				public void conversionFinished(SongSheetMetrics metrics) {
+					chordsCounted += metrics.getChordsTransposed();
+				}
+			});
+	}
+	
+	@Benchmark
+	public long isChord() {
+		long found = 0;
+		int end = chordLine.length();
+		for (int i = 0; i < chordPositions.length; i++) {
+			if (classifier.isChord(chordLine, chordPositions[i], end)) found++;
+		}
+		return found;
+	}
+	
+	@Benchmark
+	public long isChordGrammar() {
+		long found = 0;
+		int end = chordLine.length();
+		for (int i = 0; i < chordPositions.length; i++) {
+			if (strictClassifier.isChord(chordLine, chordPositions[i], end)) {
+				found++;
+			}
+		}
+		return found;
+	}
+	
+	/** Finds suffixes with the original plug-in's scan, as the baseline
+	 * for the suffix matcher and the grammar.
+	 * @return the sum of the suffixes' indices, or -1 for each chord 
+	 * without a suffix
+	*/
+	@Benchmark
+	public long suffixStrPosTest() {
+		long found = 0;
+		for (int i = 0; i < chordPositions.length; i++) {
+			found += legacyStrPosTest(
+				chordLine, chordPositions[i], 1, legacySuffixes);
+		}
+		return found;
+	}
+	
+	@Benchmark
+	public long suffixMatcher() {
+		long found = 0;
+		ChordSuffixMatcher matcher = hugeSuffixes.getChordSuffixes();
+		int end = chordLine.length();
+		for (int i = 0; i < chordPositions.length; i++) {
+			found += matcher.match(chordLine, chordPositions[i] + 1, end);
+		}
+		return found;
+	}
+	
+	@Benchmark
+	public long suffixGrammar() {
+		long found = 0;
+		int end = chordLine.length();
+		for (int i = 0; i < chordPositions.length; i++) {
+			if (hugeGrammar.matches(chordLine, chordPositions[i], end)) found++;
+		}
+		return found;
+	}
+	
+	@Benchmark
+	public long transposeChord() {
+		long len = 0;
+		for (char root = 'A'; root <= 'G'; root++) {
+			for (int acc = 0; acc < 3; acc++) {
+				len += transposer.transposeChord(root, acc).length();
+			}
+		}
+		return len;
+	}
+	
+	@Benchmark
+	public int transposeLine() {
+		lineBuf.setLength(0);
+		transposer.transposeLine(chordLine, 0, chordLine.length(), lineBuf);
+		return lineBuf.length();
+	}
+	
+	@Benchmark
+	public String runLyrics() {
+		return engine.run(lyricSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runChordDense() {
+		return engine.run(chordSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runChordDenseStrict() {
+		return strictEngine.run(chordSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runChordDenseMetrics() {
+		return metricsEngine.run(chordSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runLongLines() {
+		return engine.run(longLineSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runHugeSuffixes() {
+		return hugeSuffixesEngine.run(chordSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public String runMultiMB() {
+		return engine.run(hugeSheet, 0, 0).getText();
+	}
+	
+	@Benchmark
+	public SongSheetEdits runMultiMBEdits() {
+		return engine.runEdits(hugeSheet, 0, 0);
+	}
+	
+	/** Splits and classifies the lines a byte at a time, as the mapped 
+	 * converter did before scanning by words.
+	 * @return the number of chordal lines
+	*/
+	@Benchmark
+	public long scanPerByte() {
+		long chordal = 0;
+		int lineStart = 0;
+		int bits = 0;
+		int length = hugeBytes.limit();
+		for (int i = 0; i < length; i++) {
+			byte b = hugeBytes.get(i);
+			if (b == '\n') {
+				if (bits >= 0 && classifier.isChordLine(hugeView, lineStart, i)) {
+					chordal++;
+				}
+				lineStart = i + 1;
+				bits = 0;
+			} else {
+				bits |= b;
+			}
+		}
+		return chordal;
+	}
+	
+	@Benchmark
+	public long scanSwar() {
+		long chordal = 0;
+		int lineStart = 0;
+		int lineBreak = 0;
+		int length = hugeBytes.limit();
+		while ((lineBreak = SongSheetByteScanner.indexOf(hugeBytes, 
+			lineStart, length, (byte) '\n')) != -1) {
+			if (SongSheetByteScanner.isAscii(hugeBytes, lineStart, lineBreak)
+				&& classifier.isChordLine(hugeBytes, hugeView, lineStart, 
+					lineBreak)) {
+				chordal++;
+			}
+			lineStart = lineBreak + 1;
+		}
+		return chordal;
+	}
+	
+	@Benchmark
+	public long allKeysSeparateRuns() {
+		long len = 0;
+		for (int shift = 0; shift < SongSheetKeyExporter.NUM_KEYS; shift++) {
+			SongSheetEngine keyEngine = new SongSheetEngine(new SongSheetOptions(
+				SongSheetOptions.DEFAULT_CHORD_INDICATORS, 2, true,
+				shift / 2, shift % 2 == 1, false));
+			len += keyEngine.run(chordSheet, 0, 0).getText().length();
+		}
+		return len;
+	}
+	
+	@Benchmark
+	public SongSheetOutcome[] allKeysExporter() {
+		return new SongSheetKeyExporter(defaults).runAllKeys(chordSheet, 0, 0);
+	}
+	
+	/** A view of ASCII bytes as chars.
+	*/
+	private static class ByteView implements CharSequence {
+		private ByteBuffer buf = null; // the bytes to view
+		
+		/** Constructs a view.
+		 * @param buf the bytes to view
+		*/
+		public ByteView(ByteBuffer buf) { this.buf = buf; }
+		
+		public char charAt(int index) { return (char) (buf.get(index) & 0xff); }
+		
+		public int length() { return buf.limit(); }
+		
+		public CharSequence subSequence(int start, int end) {
+			StringBuilder s = new StringBuilder(end - start);
+			for (int i = start; i < end; i++) s.append(charAt(i));
+			return s;
+		}
+	}
+	
+	/** Creates a synthetic song sheet.
+	 * @param random the source of randomness
+	 * @param lines the number of lines
+	 * @param chordRatio the fraction of lines that hold chords
+	 * @param lineLength the approximate length of each line
+	 * @return the song sheet
+	*/
+	private static String createSheet(Random random, int lines, 
+		double chordRatio, int lineLength) {
+		StringBuilder sheet = new StringBuilder(lines * (lineLength + 1));
+		for (int i = 0; i < lines; i++) {
+			sheet.append(createLine(random, random.nextDouble() < chordRatio,
+				lineLength)).append('\n');
+		}
+		return sheet.toString();
+	}
+	
+	/** Creates a line of either chords or lyrics.
+	 * @param random the source of randomness
+	 * @param chords true for a line of chords
+	 * @param length the approximate length of the line
+	 * @return the line
+	*/
+	private static String createLine(Random random, boolean chords, 
+		int length) {
+		StringBuilder line = new StringBuilder(length + 10);
+		String[] words = chords ? CHORDS : WORDS;
+		while (line.length() < length) {
+			line.append(words[random.nextInt(words.length)]);
+			// spreads chords out over the syllables below them
+			int gap = chords ? 1 + random.nextInt(6) : 1;
+			for (int i = 0; i < gap; i++) line.append(' ');
+		}
+		return line.toString();
+	}
+	
+	/** Tests whether any of an array of strings is found at a given 
+	 * position, exactly as the original plug-in did before 
+	 * {@link ChordClassifier#strPosTest(String, int, int, String[])} was 
+	 * rewritten, by searching onward from the offset for each string.
+	 * @param s the string to search in
+	 * @param offset the position at which to start looking for strings
+	 * @param pos the number of positions past the offset at which to find
+	 * the strings
+	 * @param strTests strings to find in s
+	 * @return the index of the first string found at offset + pos; -1 if
+	 * none are found
+	*/
+	private static int legacyStrPosTest(String s, int offset, int pos, 
+		String[] strTests) {
+		for (int n = 0; n < strTests.length; n++) {
+			if ((s.indexOf(strTests[n], offset) == offset + pos)) return n;
+		}
+		return -1;
+	}
+	
+	/** Finds the start of each word in a line.
+	 * @param line the line to search
+	 * @return the positions of the words
+	*/
+	private static int[] wordPositions(String line) {
+		int[] positions = new int[line.length()];
+		int count = 0;
+		int end = line.length();
+		int pos = ChordClassifier.skipBlankspace(line, 0, end);
+		while (pos != -1 && pos < end) {
+			positions[count++] = pos;
+			pos = ChordClassifier.nextWordPos(line, pos, end);
+		}
+		return Arrays.copyOf(positions, count);
+	}
+
+}
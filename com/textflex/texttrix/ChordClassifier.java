@@ -0,0 +1,307 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Classifies song sheet lines as chordal or lyrical.
+ * Works on ranges within a character sequence, so that lines can be
+ * examined in place inside a larger buffer without first being copied
+ * into strings of their own.  None of the range methods allocate, and
+ * a classifier holds no state besides its options, so that a single
+ * instance can be shared.
+*/
+public class ChordClassifier {
+	
+	private final ChordSuffixMatcher suffixes; // strings that can follow a chord
+	// grammar that whole chords must match; null to check only suffixes
+	private final ChordGrammar grammar;
+	private final int threshold; // num of words to check per line
+	
+	/** Constructs a classifier.
+	 * @param suffixes the compiled strings that follow the chord family
+	 * name and indicate chords
+	 * @param threshold num of words to check per line before considering
+	 * it chordal; 0 to check all of them
+	*/
+	public ChordClassifier(ChordSuffixMatcher suffixes, int threshold) {
+		this(suffixes, null, threshold);
+	}
+	
+	/** Constructs a classifier that may recognize chords by a grammar.
+	 * @param suffixes the compiled strings that follow the chord family
+	 * name and indicate chords
+	 * @param grammar the grammar that whole chords must match, in place
+	 * of the suffixes; null to check only the suffixes
+	 * @param threshold num of words to check per line before considering
+	 * it chordal; 0 to check all of them
+	*/
+	public ChordClassifier(ChordSuffixMatcher suffixes, ChordGrammar grammar, 
+		int threshold) {
+		this.suffixes = suffixes;
+		this.grammar = grammar;
+		// number of words to check per line, defaulting to 1000
+		this.threshold = (threshold == 0) ? 1000 : threshold;
+	}
+	
+	/** Constructs a classifier for a set of options.
+	 * @param options the options, whose chord suffixes, any chord 
+	 * grammar, and threshold are used
+	*/
+	public ChordClassifier(SongSheetOptions options) {
+		this(options.getChordSuffixes(), options.getChordGrammar(), 
+			options.getThreshold());
+	}
+	
+	/** Determines if a line is chordal.
+	 * Checks up to the threshold number of words, stopping at the first
+	 * word that isn't a chord.  A line that ends before reaching the
+	 * threshold is chordal if all of its words are chords, while a line
+	 * of only blankspace is never chordal.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @return true if the line is chordal
+	*/
+	public boolean isChordLine(CharSequence s, int start, int end) {
+		// tracks the position within the line, starting after blankspace
+		int pos = skipBlankspace(s, start, end);
+		boolean chordLine = false; // flags chordal lines
+		int count = 0; // records num of chords checked
+		// continues only until checked only user-defined num of chords,
+		// all words so far have been chords, and the end of the line has not 
+		// been reached
+		do {
+			if (pos < end) chordLine = isChord(s, pos, end);
+			// skips to next word
+			pos = nextWordPos(s, pos, end);
+		} while (++count < threshold && chordLine && pos != -1);
+		return chordLine;
+	}
+	
+	/** Determines if a line of ASCII bytes is chordal, just as
+	 * {@link #isChordLine(CharSequence, int, int)} does, but finding the
+	 * words by scanning the bytes several at a time.
+	 * @param buf the bytes containing the line
+	 * @param s the same bytes viewed as chars
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @return true if the line is chordal
+	 * @see SongSheetByteScanner
+	*/
+	public boolean isChordLine(ByteBuffer buf, CharSequence s, int start, 
+		int end) {
+		int pos = SongSheetByteScanner.skipBlankspace(buf, start, end);
+		boolean chordLine = false; // flags chordal lines
+		int count = 0; // records num of chords checked
+		do {
+			if (pos < end) chordLine = isChord(s, pos, end);
+			// skips to next word
+			pos = SongSheetByteScanner.skipBlankspace(buf, 
+				SongSheetByteScanner.skipNonBlankspace(buf, pos, end), end);
+			if (pos >= end) pos = -1;
+		} while (++count < threshold && chordLine && pos != -1);
+		return chordLine;
+	}
+	
+	/** Determines if a word is a chord.
+	 * Chords are defined as words that begin with a capitalized chord
+	 * family name, including sharps (eg "A" or "A#"), followed by nothing,
+	 * a digit, or one of a list of chord indicators (eg "sus", "aug").
+	 * With a grammar, the whole word must instead match the grammar.
+	 * @param s the text containing the word
+	 * @param pos the position of the word
+	 * @param end the ending index of the line in which the word resides
+	 * @return true if the word is a chord
+	*/
+	public boolean isChord(CharSequence s, int pos, int end) {
+		if (grammar != null) return grammar.matches(s, pos, end);
+		char c = s.charAt(pos);
+		if (c < 'A' || c > 'G') return false;
+		if (pos + 1 >= end) return true;
+		char next = s.charAt(pos + 1);
+		return isBlankspace(next)
+			|| Character.isDigit(next)
+			|| suffixes.matches(s, pos + 1, end);
+	}
+	
+	/** Checks whether a string occurs at the given position.
+	 * @param s the text to check
+	 * @param pos the position at which the string must start
+	 * @param end the index past which the string may not extend
+	 * @param str the string to compare
+	 * @return true if <code>str</code> occurs at <code>pos</code>
+	*/
+	private static boolean regionMatches(CharSequence s, int pos, int end,
+		String str) {
+		int len = str.length();
+		if (pos + len > end) return false;
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(pos + i) != str.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	/** Checks if the character is a space or tab.
+	 * @param c the character to check
+	 * @return true if the character is a space, tab, or non-breaking space
+	*/
+	public static boolean isBlankspace(char c) {
+		return c == ' ' || c == '\t' || c == '\240';
+	}
+	
+	/** Skips past any blankspace.
+	 * @param s the text to search
+	 * @param pos the position at which to start searching
+	 * @param end the index at which to stop searching
+	 * @return the position of the first non-blankspace at or after 
+	 * <code>pos</code>; <code>end</code> if there is none
+	*/
+	public static int skipBlankspace(CharSequence s, int pos, int end) {
+		while (pos < end && isBlankspace(s.charAt(pos))) pos++;
+		return pos;
+	}
+	
+	/** Skips past any non-blankspace.
+	 * @param s the text to search
+	 * @param pos the position at which to start searching
+	 * @param end the index at which to stop searching
+	 * @return the position of the first blankspace at or after 
+	 * <code>pos</code>; <code>end</code> if there is none
+	*/
+	public static int skipNonBlankspace(CharSequence s, int pos, int end) {
+		while (pos < end && !isBlankspace(s.charAt(pos))) pos++;
+		return pos;
+	}
+	
+	/** Finds the position of the next word in a line.
+	 * First passes over non-blankspaces, then blankspaces to reach
+	 * the beginning of the next word.
+	 * @param s the text to search
+	 * @param pos the position at which to start searching
+	 * @param end the ending index of the line
+	 * @return the position of the next word; -1 if no words left
+	*/
+	public static int nextWordPos(CharSequence s, int pos, int end) {
+		pos = skipBlankspace(s, skipNonBlankspace(s, pos, end), end);
+		return (pos >= end) ? -1 : pos;
+	}
+	
+	
+	/* String-based forms, kept for the plug-in's public helpers */
+	
+	/** Determines if a word is a chord.
+	 * @param line the entire line in which the word resides
+	 * @param linePos the position of the word within the line; -1 is
+	 * always considered a chord
+	 * @param chordIndicators array of strings that follow the chord family
+	 * name and indicate chords
+	 * @return true if the word is a chord
+	 * @see #isChord(CharSequence, int, int)
+	*/
+	public static boolean isChord(String line, int linePos, 
+		String[] chordIndicators) {
+		return linePos == -1
+			|| new ChordClassifier(new ChordSuffixMatcher(chordIndicators), 1)
+				.isChord(line, linePos, line.length());
+	}
+	
+	/** Tests whether any of an array of strings is found at
+	 * a given position within another string
+	 * @param s the string to search in
+	 * @param offset the position at which to start looknig for strings from the array
+	 * @param pos the number of positions past the offset at which to find
+	 * the strings; if negative, will always return false
+	 * @param strTests strings to find in s
+	 * @return the index of the first string in the array found at 
+	 * offset + pos in s; -1 if none are found
+	*/
+	public static int strPosTest(String s, int offset, int pos, 
+		String[] strTests) {
+		if (pos < 0) return -1;
+		for (int n = 0; n < strTests.length; n++) {
+			if (regionMatches(s, offset + pos, s.length(), strTests[n])) return n;
+		}
+		return -1;
+	}
+	
+	/** Counts the number of blankspace--tabs or spaces--that
+	 * start at and are continuous from the given position.
+	 * @param s the string to search
+	 * @param offset the position at which to start searching
+	 * @return the number of blankspaces
+	*/
+	public static int countBlankspace(String s, int offset) {
+		return skipBlankspace(s, offset, s.length()) - offset;
+	}
+	
+	/** Counts the number of non-blankspaces--neither tabs nor spaces--that
+	 * start at and are continuous from the given position.
+	 * @param s the string to search
+	 * @param offset the position at which to start searching
+	 * @return the number of non-blankspaces
+	*/
+	public static int countNonBlankspace(String s, int offset) {
+		return skipNonBlankspace(s, offset, s.length()) - offset;
+	}
+	
+	/** Finds the position of the next word in a line.
+	 * @param s the line to search
+	 * @param offset the position at which to start searching
+	 * @return the position of the next word; -1 if no words left, 
+	 * such as at the end of the line
+	*/
+	public static int nextWordInLinePos(String s, int offset) {
+		return nextWordPos(s, offset, s.length());
+	}
+	
+	/** Creates an array from a comma-delimited string.
+	 * @param list comma-delimited string
+	 * @return an string array
+	*/
+	public static String[] createArrayFromList(String list) {
+		StringTokenizer tok = new StringTokenizer(list, ",");
+		String[] array = new String[tok.countTokens()];
+		int n = 0;
+		while (tok.hasMoreTokens()) {
+			array[n++] = tok.nextToken();
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,374 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.util.*;
+
+/** Recognizes chords by a grammar of their parts.
+ * A chord is a family name from "A" to "G", an optional sharp or flat,
+ * an optional quality such as "m" or "dim", any number of extensions
+ * and alterations such as "7", "sus4", or "b9", an optional group of
+ * extensions or alterations in parentheses, such as "(b9,#11)", and 
+ * an optional bass note after a slash, as in "Am7/G".  The word must
+ * end where the chord ends, so that lyrics such as "Amazing" or "Ebony"
+ * aren't mistaken for chords merely because they begin with one.
+ * <p>The grammar is compiled once into a deterministic automaton whose
+ * transitions are kept in a single table, indexed by state and by the
+ * class of each character, so that recognizing a word takes one table
+ * lookup per character, however many qualities or extensions are 
+ * allowed.  A compiled grammar is never modified and may be shared 
+ * among threads.
+*/
+public class ChordGrammar {
+	
+	/* Constants */
+	/** Default list of chord qualities, which directly follow the family
+	 * name and any sharp or flat */
+	public static final String DEFAULT_QUALITIES = 
+		"m,mi,min,-,M,ma,maj,\u0394,dim,o,\u00b0,\u00f8,aug,+";
+	/** Default list of chord extensions, any number of which may follow
+	 * the quality */
+	public static final String DEFAULT_EXTENSIONS = 
+		"2,4,5,6,7,9,11,13,69,6/9,add2,add4,add9,add11,add13,sus,sus2,sus4,"
+		+ "maj7,maj9,maj11,maj13,M7,M9,\u03947,alt";
+	/** Default list of chord alterations, which may follow or take the
+	 * place of the extensions */
+	public static final String DEFAULT_ALTERATIONS = 
+		"b5,#5,-5,+5,b9,#9,-9,+9,#11,+11,b13,-13";
+	private static final int DEAD = 0; // state from which nothing matches
+	
+	// class of each ASCII char, indexing the columns of the table
+	private final int[] asciiClasses = new int[128];
+	// other chars that appear in the grammar, sorted, and their classes
+	private final char[] otherChars;
+	private final int[] otherClasses;
+	private final int numClasses; // num of columns, including other chars
+	// state reached from each state on each class of chars, given as the
+	// start of the state's row to save a multiplication per char
+	private final int[] transitions;
+	private final int start; // row of the state before the family name
+	private final boolean[] accepting; // flags states that end a chord
+	
+	/** Compiles the default grammar.
+	*/
+	public ChordGrammar() {
+		this("");
+	}
+	
+	/** Compiles the default grammar, accepting any of a list of chord
+	 * suffixes as a quality as well.  Sharps, flats, and slashes are
+	 * already part of the grammar and are skipped as suffixes.
+	 * @param chordIndicatorsList comma-delimited list of chord suffixes,
+	 * such as "#,b,/,sus,aug,dim,m"
+	*/
+	public ChordGrammar(String chordIndicatorsList) {
+		this(ChordClassifier.createArrayFromList(
+				DEFAULT_QUALITIES + "," + chordIndicatorsList), 
+			ChordClassifier.createArrayFromList(DEFAULT_EXTENSIONS), 
+			ChordClassifier.createArrayFromList(DEFAULT_ALTERATIONS));
+	}
+	
+	/** Compiles a grammar.
+	 * @param qualities the qualities that may follow the family name
+	 * @param extensions the extensions that may follow the quality
+	 * @param alterations the alterations that may follow the quality, 
+	 * mixed with the extensions
+	*/
+	public ChordGrammar(String[] qualities, String[] extensions, 
+		String[] alterations) {
+		// builds a nondeterministic automaton from the parts of a chord
+		Nfa nfa = new Nfa();
+		int begin = nfa.addState();
+		int root = nfa.addState();
+		int accidental = nfa.addState();
+		int quality = nfa.addState();
+		int group = nfa.addState();
+		int groupItem = nfa.addState();
+		int beforeBass = nfa.addState();
+		int bass = nfa.addState();
+		int bassAccidental = nfa.addState();
+		int accept = nfa.addState();
+		for (char c = 'A'; c <= 'G'; c++) nfa.addEdge(begin, c, root);
+		nfa.addEdge(root, '#', accidental);
+		nfa.addEdge(root, 'b', accidental);
+		nfa.addEpsilon(root, accidental);
+		for (int i = 0; i < qualities.length; i++) {
+			String q = qualities[i];
+			if (q.equals("#") || q.equals("b") || q.equals("/")) continue;
+			nfa.addToken(accidental, q, quality);
+		}
+		nfa.addEpsilon(accidental, quality);
+		// extensions and alterations loop back for any number of them
+		nfa.addTokens(quality, extensions, quality);
+		nfa.addTokens(quality, alterations, quality);
+		nfa.addEpsilon(quality, beforeBass);
+		// a parenthesized group holds one or more, optionally with commas
+		nfa.addEdge(quality, '(', group);
+		nfa.addTokens(group, extensions, groupItem);
+		nfa.addTokens(group, alterations, groupItem);
+		nfa.addTokens(groupItem, extensions, groupItem);
+		nfa.addTokens(groupItem, alterations, groupItem);
+		nfa.addEdge(groupItem, ',', group);
+		nfa.addEdge(groupItem, ')', beforeBass);
+		for (char c = 'A'; c <= 'G'; c++) nfa.addEdge(bass, c, bassAccidental);
+		nfa.addEdge(beforeBass, '/', bass);
+		nfa.addEdge(bassAccidental, '#', accept);
+		nfa.addEdge(bassAccidental, 'b', accept);
+		nfa.addEpsilon(bassAccidental, accept);
+		nfa.addEpsilon(beforeBass, accept);
+		
+		// gives each char in the grammar a class of its own, leaving
+		// class 0 for all other chars
+		TreeSet<Character> chars = nfa.getChars();
+		numClasses = chars.size() + 1;
+		int numOther = 0;
+		for (Iterator<Character> it = chars.iterator(); it.hasNext(); ) {
+			if (it.next() >= 128) numOther++;
+		}
+		otherChars = new char[numOther];
+		otherClasses = new int[numOther];
+		char[] classChars = new char[numClasses];
+		int cls = 1;
+		int other = 0;
+		for (Iterator<Character> it = chars.iterator(); it.hasNext(); cls++) {
+			char c = it.next();
+			classChars[cls] = c;
+			if (c < 128) {
+				asciiClasses[c] = cls;
+			} else {
+				otherChars[other] = c;
+				otherClasses[other++] = cls;
+			}
+		}
+		
+		// finds the sets of states that the automaton can be in at once,
+		// each of which becomes a single state of the table
+		HashMap<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+		ArrayList<BitSet> sets = new ArrayList<BitSet>();
+		BitSet dead = new BitSet();
+		ids.put(dead, DEAD);
+		sets.add(dead);
+		BitSet first = new BitSet();
+		first.set(begin);
+		first = nfa.closure(first);
+		ids.put(first, 1);
+		sets.add(first);
+		int[] table = new int[numClasses * 16];
+		for (int state = 0; state < sets.size(); state++) {
+			if ((state + 1) * numClasses > table.length) {
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+			BitSet set = sets.get(state);
+			for (cls = 1; cls < numClasses; cls++) {
+				BitSet next = nfa.closure(nfa.move(set, classChars[cls]));
+				Integer id = ids.get(next);
+				if (id == null) {
+					id = sets.size();
+					ids.put(next, id);
+					sets.add(next);
+				}
+				table[state * numClasses + cls] = id * numClasses;
+			}
+		}
+		transitions = Arrays.copyOf(table, sets.size() * numClasses);
+		this.start = numClasses;
+		accepting = new boolean[sets.size()];
+		for (int state = 0; state < accepting.length; state++) {
+			accepting[state] = sets.get(state).get(accept);
+		}
+	}
+	
+	/** Determines if a word is a chord.
+	 * Reads the word up to the next blankspace, in a single pass, 
+	 * stopping early at the first char that no chord could continue with.
+	 * @param s the text containing the word
+	 * @param pos the position of the word
+	 * @param end the index past which the word may not extend
+	 * @return true if the whole word is a chord
+	*/
+	public boolean matches(CharSequence s, int pos, int end) {
+		int row = start;
+		while (pos < end) {
+			char c = s.charAt(pos++);
+			if (ChordClassifier.isBlankspace(c)) break;
+			row = transitions[row + classOf(c)];
+			if (row == DEAD) return false;
+		}
+		return accepting[row / numClasses];
+	}
+	
+	/** Determines if a word is a chord.
+	 * @param word the word
+	 * @return true if the whole word is a chord
+	*/
+	public boolean matches(String word) {
+		return matches(word, 0, word.length());
+	}
+	
+	/** Gets the number of states in the compiled table.
+	 * @return the number of states, including the state from which 
+	 * nothing matches
+	*/
+	public int getStateCount() { return accepting.length; }
+	
+	/** Finds the class of a char.
+	 * @param c the char
+	 * @return the column of the char in the table; 0 for chars that
+	 * appear nowhere in the grammar
+	*/
+	private int classOf(char c) {
+		if (c < 128) return asciiClasses[c];
+		int i = Arrays.binarySearch(otherChars, c);
+		return (i < 0) ? 0 : otherClasses[i];
+	}
+	
+	/** Nondeterministic automaton, from which the table is built.
+	*/
+	private static class Nfa {
+		// labeled edges of each state, as pairs of char and target
+		private final ArrayList<ArrayList<int[]>> edges = 
+			new ArrayList<ArrayList<int[]>>();
+		// unlabeled edges of each state
+		private final ArrayList<ArrayList<Integer>> epsilons = 
+			new ArrayList<ArrayList<Integer>>();
+		
+		/** Adds a state.
+		 * @return the new state
+		*/
+		int addState() {
+			edges.add(new ArrayList<int[]>());
+			epsilons.add(new ArrayList<Integer>());
+			return edges.size() - 1;
+		}
+		
+		/** Adds an edge labeled with a char.
+		 * @param from the state at which the edge starts
+		 * @param c the label
+		 * @param to the state at which the edge ends
+		*/
+		void addEdge(int from, char c, int to) {
+			edges.get(from).add(new int[] { c, to });
+		}
+		
+		/** Adds an unlabeled edge.
+		 * @param from the state at which the edge starts
+		 * @param to the state at which the edge ends
+		*/
+		void addEpsilon(int from, int to) {
+			epsilons.get(from).add(to);
+		}
+		
+		/** Adds a chain of edges that spells out a token.
+		 * @param from the state before the token
+		 * @param token the token; ignored if empty
+		 * @param to the state after the token
+		*/
+		void addToken(int from, String token, int to) {
+			int len = token.length();
+			if (len == 0) return;
+			int state = from;
+			for (int i = 0; i < len - 1; i++) {
+				int next = addState();
+				addEdge(state, token.charAt(i), next);
+				state = next;
+			}
+			addEdge(state, token.charAt(len - 1), to);
+		}
+		
+		/** Adds a chain of edges for each of several tokens.
+		 * @param from the state before the tokens
+		 * @param tokens the tokens
+		 * @param to the state after the tokens
+		*/
+		void addTokens(int from, String[] tokens, int to) {
+			for (int i = 0; i < tokens.length; i++) {
+				addToken(from, tokens[i], to);
+			}
+		}
+		
+		/** Gets the labels of all the edges.
+		 * @return the labels, sorted
+		*/
+		TreeSet<Character> getChars() {
+			TreeSet<Character> chars = new TreeSet<Character>();
+			for (int state = 0; state < edges.size(); state++) {
+				for (int[] edge : edges.get(state)) chars.add((char) edge[0]);
+			}
+			return chars;
+		}
+		
+		/** Follows the edges labeled with a char.
+		 * @param set the states from which to start
+		 * @param c the label
+		 * @return the states reached
+		*/
+		BitSet move(BitSet set, char c) {
+			BitSet next = new BitSet();
+			for (int state = set.nextSetBit(0); state >= 0; 
+				state = set.nextSetBit(state + 1)) {
+				for (int[] edge : edges.get(state)) {
+					if (edge[0] == c) next.set(edge[1]);
+				}
+			}
+			return next;
+		}
+		
+		/** Follows the unlabeled edges as far as they go.
+		 * @param set the states from which to start, which are kept
+		 * @return the states reachable without reading a char
+		*/
+		BitSet closure(BitSet set) {
+			BitSet closed = (BitSet) set.clone();
+			ArrayList<Integer> pending = new ArrayList<Integer>();
+			for (int state = set.nextSetBit(0); state >= 0; 
+				state = set.nextSetBit(state + 1)) {
+				pending.add(state);
+			}
+			while (!pending.isEmpty()) {
+				int state = pending.remove(pending.size() - 1);
+				for (int next : epsilons.get(state)) {
+					if (!closed.get(next)) {
+						closed.set(next);
+						pending.add(next);
+					}
+				}
+			}
+			return closed;
+		}
+	}
+
+}
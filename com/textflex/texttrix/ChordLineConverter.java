@@ -0,0 +1,58 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+/** Converts the lines that a song sheet engine has found to be chordal.
+ * Lyrical lines are always kept as they are, while each kind of 
+ * conversion, such as transposing or removing chords, decides what 
+ * becomes of the chordal ones.  Implementations must not keep any state
+ * between lines, so that a single instance may serve many engines at once.
+*/
+public interface ChordLineConverter {
+	
+	/** Converts a chordal line.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param out the builder to which the converted line is appended
+	 * @return true if the line should be kept, false if it should be 
+	 * removed from the song sheet
+	*/
+	public boolean convertChordLine(CharSequence s, int start, int end, 
+		StringBuilder out);
+
+}
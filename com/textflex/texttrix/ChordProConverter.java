@@ -0,0 +1,575 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.*;
+
+/** Reads and writes ChordPro song sheets.
+ * ChordPro places each chord in brackets right before the lyric it is
+ * sung on, as in "[G]Amazing [C]grace", with directives such as 
+ * "{title: Amazing Grace}" on lines of their own.  The converter 
+ * transposes or removes the bracketed chords according to the song sheet
+ * options, and converts whole libraries between ChordPro and sheets with
+ * the chords on the line above the lyrics.  Each line is read, scanned 
+ * once for its directive or bracketed chords, and written before the next
+ * one is read, so that memory use is bounded by the longest line.
+ * Bracketed text that doesn't start with a chord, such as "[N.C.]", is 
+ * kept as it is.  Like the engine, a converter holds no state between 
+ * conversions and may be shared.
+*/
+public class ChordProConverter {
+	
+	/* Constants */
+	// number of chars read from the input at a time
+	private static final int BUFFER_SIZE = 8192;
+	// names of the directives that mark a text as ChordPro
+	private static final HashSet<String> DIRECTIVES = new HashSet<String>(
+		Arrays.asList(new String[] {
+			"title", "t", "subtitle", "st", "artist", "composer", "lyricist",
+			"album", "year", "key", "time", "tempo", "duration", "capo", 
+			"copyright", "meta", "comment", "c", "comment_italic", "ci", 
+			"comment_box", "cb", "start_of_chorus", "soc", "end_of_chorus", 
+			"eoc", "chorus", "start_of_verse", "sov", "end_of_verse", "eov",
+			"start_of_bridge", "sob", "end_of_bridge", "eob", "start_of_tab",
+			"sot", "end_of_tab", "eot", "start_of_grid", "sog", "end_of_grid",
+			"eog", "define", "chord", "new_song", "ns", "new_page", "np",
+			"column_break", "colb", "columns", "col"
+		}));
+	
+	private final SongSheetOptions options; // the conversion options
+	private final ChordClassifier classifier; // finds the chords
+	// recognizes whole chords in brackets
+	private final ChordGrammar grammar;
+	// transposes or removes the chords
+	private final ChordLineConverter chordLines;
+	
+	/** Constructs a converter.
+	 * @param options the song sheet options
+	*/
+	public ChordProConverter(SongSheetOptions options) {
+		this.options = options;
+		classifier = new ChordClassifier(options);
+		chordLines = options.getChordLineConverter();
+		grammar = options.getWholeChordGrammar();
+	}
+	
+	/** Checks whether a text looks like a ChordPro song sheet, with 
+	 * a directive or bracketed chord among its first lines.
+	 * Only known directives, such as "{title: ...}", count, along with
+	 * brackets holding a whole chord by the {@link ChordGrammar}, so that
+	 * plain song sheets with stray braces or brackets such as "[Amen]"
+	 * aren't taken for ChordPro.
+	 * @param s the text to check
+	 * @param maxLines the maximum number of lines to check
+	 * @return true if the text appears to be in ChordPro
+	*/
+	public boolean isChordPro(CharSequence s, int maxLines) {
+		int len = s.length();
+		int start = 0;
+		for (int line = 0; line < maxLines && start < len; line++) {
+			int end = start;
+			while (end < len && s.charAt(end) != '\n') end++;
+			int colon = directiveEnd(s, start, end);
+			if (colon != -1) {
+				int nameStart = ChordClassifier.skipBlankspace(s, start, end) + 1;
+				String name = s.subSequence(nameStart, colon).toString().trim();
+				if (DIRECTIVES.contains(name)) return true;
+			}
+			for (int i = start; i < end; i++) {
+				if (s.charAt(i) != '[') continue;
+				int close = indexOf(s, ']', i + 1, end);
+				if (close != -1 && close > i + 1 
+					&& grammar.matches(s, i + 1, close)) {
+					return true;
+				}
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+	
+	/** Runs the song sheet maker on a ChordPro text, keeping it in ChordPro.
+	 * Works only on the lines within the given region if the options
+	 * call for the selected region, and on the entire text otherwise.
+	 * @param s the ChordPro text
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the converted text along with the line counts
+	 * @see #convert(Reader, Writer)
+	*/
+	public SongSheetOutcome run(String s, int x, int y) {
+		int n = x;
+		int end = y;
+		if (!options.getSelectedRegion()) {
+			n = 0;
+			end = s.length();
+		}
+		// lines are converted whole, so the region extends to the end
+		// of the line in which it stops
+		int regionEnd = n;
+		if (n < end) {
+			int lineBreak = s.indexOf('\n', end - 1);
+			regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+		}
+		StringWriter out = new StringWriter(s.length());
+		out.write(s, 0, n);
+		SongSheetOutcome outcome = null;
+		try {
+			outcome = convert(new StringReader(s.substring(n, regionEnd)), out);
+		} catch (IOException e) {
+			// string readers and writers don't throw I/O exceptions
+			throw new RuntimeException(e);
+		}
+		out.write(s, regionEnd, s.length() - regionEnd);
+		return new SongSheetOutcome(out.toString(), outcome.getLinesRead(),
+			outcome.getLinesChanged());
+	}
+	
+	/** Transposes or removes the chords of a ChordPro song sheet, keeping
+	 * it in ChordPro.
+	 * Lines left with only blankspace once their chords are removed
+	 * are dropped.  Chordal lines without brackets, as when chords are 
+	 * placed above the lyrics in parts of the sheet, are converted just as
+	 * the engine would convert them.
+	 * @param in the ChordPro text
+	 * @param out the destination for the converted ChordPro text
+	 * @return the line counts
+	 * @throws IOException if either stream fails
+	*/
+	public SongSheetOutcome convert(Reader in, Writer out) throws IOException {
+		LineReader lines = new LineReader(in);
+		StringBuilder converted = new StringBuilder();
+		long linesRead = 0;
+		long linesWritten = 0;
+		while (lines.next()) {
+			linesRead++;
+			char[] s = lines.buf;
+			int start = lines.start;
+			int end = lines.end;
+			if (directiveEnd(lines.seq, start, end) != -1) {
+				out.write(s, start, end - start);
+			} else {
+				converted.setLength(0);
+				boolean hadChords = false;
+				for (int i = start; i < end; i++) {
+					int close = (s[i] == '[') ? indexOf(lines.seq, ']', i + 1, end) : -1;
+					if (close == -1) {
+						converted.append(s[i]);
+						continue;
+					}
+					hadChords = true;
+					int chordStart = converted.length();
+					converted.append('[');
+					if (appendChord(lines.seq, i + 1, close, converted)) {
+						converted.append(']');
+					} else {
+						converted.setLength(chordStart);
+					}
+					i = close;
+				}
+				if (hadChords && isBlank(converted)) continue;
+				if (!hadChords && classifier.isChordLine(lines.seq, start, end)) {
+					converted.setLength(0);
+					if (!chordLines.convertChordLine(lines.seq, start, end, 
+						converted)) {
+						continue;
+					}
+				}
+				out.append(converted);
+			}
+			out.write('\n');
+			linesWritten++;
+		}
+		return new SongSheetOutcome(null, linesRead, linesWritten);
+	}
+	
+	/** Converts a ChordPro song sheet into one with its chords on the line
+	 * above the lyrics, transposing or removing the chords along the way.
+	 * The title, subtitle, and comment directives become lines of plain
+	 * text, while all other directives are kept as they are.  Each chord 
+	 * is placed above the lyric that followed it, or just after the chord
+	 * before it if that chord runs past the lyric.
+	 * @param in the ChordPro text
+	 * @param out the destination for the converted text
+	 * @return the line counts
+	 * @throws IOException if either stream fails
+	*/
+	public SongSheetOutcome toAboveLines(Reader in, Writer out) 
+		throws IOException {
+		LineReader lines = new LineReader(in);
+		StringBuilder chordLine = new StringBuilder();
+		StringBuilder lyricLine = new StringBuilder();
+		long linesRead = 0;
+		long linesWritten = 0;
+		while (lines.next()) {
+			linesRead++;
+			char[] s = lines.buf;
+			int start = lines.start;
+			int end = lines.end;
+			int colon = directiveEnd(lines.seq, start, end);
+			if (colon != -1) {
+				writeDirective(lines.seq, start, end, colon, out);
+				linesWritten++;
+				continue;
+			}
+			chordLine.setLength(0);
+			lyricLine.setLength(0);
+			for (int i = start; i < end; i++) {
+				int close = (s[i] == '[') ? indexOf(lines.seq, ']', i + 1, end) : -1;
+				if (close == -1) {
+					lyricLine.append(s[i]);
+					continue;
+				}
+				// places the chord above the next lyric, leaving at least
+				// one space after the chord before it
+				int chordStart = chordLine.length();
+				int col = lyricLine.length();
+				if (chordStart < col) {
+					for (int n = chordStart; n < col; n++) chordLine.append(' ');
+				} else if (chordStart > 0) {
+					chordLine.append(' ');
+				}
+				if (!appendChord(lines.seq, i + 1, close, chordLine)) {
+					chordLine.setLength(chordStart);
+				}
+				i = close;
+			}
+			if (chordLine.length() > 0) {
+				out.append(chordLine).write('\n');
+				linesWritten++;
+				if (isBlank(lyricLine)) continue;
+			}
+			out.append(lyricLine).write('\n');
+			linesWritten++;
+		}
+		return new SongSheetOutcome(null, linesRead, linesWritten);
+	}
+	
+	/** Converts a song sheet with its chords on the line above the lyrics
+	 * into ChordPro, transposing or removing the chords along the way.
+	 * Each chordal line is merged into the lyrics below it, with each chord
+	 * bracketed right before the lyric beneath it, while chordal lines 
+	 * without lyrics below give a line of bracketed chords alone.
+	 * @param in the text with chords above the lyrics
+	 * @param out the destination for the ChordPro text
+	 * @return the line counts
+	 * @throws IOException if either stream fails
+	*/
+	public SongSheetOutcome toChordPro(Reader in, Writer out) 
+		throws IOException {
+		LineReader lines = new LineReader(in);
+		StringBuilder chords = new StringBuilder(); // the pending chord line
+		boolean pending = false; // flags a chord line awaiting its lyrics
+		StringBuilder merged = new StringBuilder();
+		long linesRead = 0;
+		long linesWritten = 0;
+		while (lines.next()) {
+			linesRead++;
+			CharSequence s = lines.seq;
+			int start = lines.start;
+			int end = lines.end;
+			// classifies the line without any carriage return
+			int textEnd = end;
+			if (textEnd > start && s.charAt(textEnd - 1) == '\r') textEnd--;
+			boolean chordal = directiveEnd(s, start, end) == -1
+				&& classifier.isChordLine(s, start, textEnd);
+			if (pending) {
+				merged.setLength(0);
+				if (chordal || isBlank(s, start, end) 
+					|| directiveEnd(s, start, end) != -1) {
+					// writes the waiting chords on a line of their own
+					if (mergeChords(chords, 0, chords.length(), null, 0, 0, merged)) {
+						out.append(merged).write('\n');
+						linesWritten++;
+					}
+				} else {
+					// merges the waiting chords into these lyrics
+					mergeChords(chords, 0, chords.length(), s, start, end, merged);
+					out.append(merged).write('\n');
+					linesWritten++;
+					pending = false;
+					continue;
+				}
+				pending = false;
+			}
+			if (chordal) {
+				chords.setLength(0);
+				chords.append(s, start, end);
+				pending = true;
+			} else {
+				out.append(s, start, end).write('\n');
+				linesWritten++;
+			}
+		}
+		if (pending) {
+			merged.setLength(0);
+			if (mergeChords(chords, 0, chords.length(), null, 0, 0, merged)) {
+				out.append(merged).write('\n');
+				linesWritten++;
+			}
+		}
+		return new SongSheetOutcome(null, linesRead, linesWritten);
+	}
+	
+	/** Merges a line of chords into a line of lyrics, bracketing each chord
+	 * right before the lyric beneath it.
+	 * @param chords the text containing the chords
+	 * @param chordStart the starting index of the line of chords
+	 * @param chordEnd the ending index of the line of chords
+	 * @param lyrics the text containing the lyrics; null for no lyrics, 
+	 * in which case the chords are simply separated by spaces
+	 * @param lyricStart the starting index of the lyrics
+	 * @param lyricEnd the ending index of the lyrics
+	 * @param out the builder to which to append the merged line
+	 * @return true if any chord was kept
+	*/
+	private boolean mergeChords(CharSequence chords, int chordStart, 
+		int chordEnd, CharSequence lyrics, int lyricStart, int lyricEnd,
+		StringBuilder out) {
+		// leaves any carriage returns until the end
+		while (chordEnd > chordStart && chords.charAt(chordEnd - 1) == '\r') {
+			chordEnd--;
+		}
+		boolean carriageReturn = false;
+		if (lyrics != null && lyricEnd > lyricStart 
+			&& lyrics.charAt(lyricEnd - 1) == '\r') {
+			carriageReturn = true;
+			lyricEnd--;
+		}
+		boolean kept = false;
+		int lyric = lyricStart; // lyrics written so far
+		int pos = ChordClassifier.skipBlankspace(chords, chordStart, chordEnd);
+		while (pos < chordEnd) {
+			int wordEnd = ChordClassifier.skipNonBlankspace(chords, pos, chordEnd);
+			int mark = out.length();
+			if (lyrics == null) {
+				if (kept) out.append(' ');
+			} else {
+				// copies the lyrics up to the chord's column, padding the 
+				// lyrics if they end before it
+				int col = lyricStart + pos - chordStart;
+				int copyEnd = Math.min(col, lyricEnd);
+				if (lyric < copyEnd) out.append(lyrics, lyric, copyEnd);
+				for (int n = Math.max(lyric, lyricEnd); n < col; n++) out.append(' ');
+				lyric = Math.max(lyric, col);
+			}
+			int chordMark = out.length();
+			out.append('[');
+			if (appendChord(chords, pos, wordEnd, out)) {
+				out.append(']');
+				kept = true;
+			} else if (lyrics == null) {
+				out.setLength(mark);
+			} else {
+				out.setLength(chordMark);
+			}
+			pos = ChordClassifier.skipBlankspace(chords, wordEnd, chordEnd);
+		}
+		if (lyrics != null && lyric < lyricEnd) out.append(lyrics, lyric, lyricEnd);
+		if (carriageReturn) out.append('\r');
+		return kept;
+	}
+	
+	/** Appends a chord, transposed or removed according to the options.
+	 * Text that isn't a whole chord by the {@link ChordGrammar}, such as
+	 * "Amen", is kept as it is.
+	 * @param s the text containing the chord
+	 * @param start the starting index of the chord
+	 * @param end the ending index of the chord, noninclusive
+	 * @param out the builder to which to append the chord
+	 * @return true if the chord was kept
+	*/
+	private boolean appendChord(CharSequence s, int start, int end, 
+		StringBuilder out) {
+		if (start == end || !grammar.matches(s, start, end)) {
+			out.append(s, start, end);
+			return true;
+		}
+		return chordLines.convertChordLine(s, start, end, out);
+	}
+	
+	/** Writes a directive line as it would appear in a sheet with the 
+	 * chords above the lyrics.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param colon the index of the colon separating the directive's name
+	 * from its value, or of the closing brace if it has no value
+	 * @param out the writer to which to write the line
+	 * @throws IOException if the writer fails
+	*/
+	private static void writeDirective(CharSequence s, int start, int end,
+		int colon, Writer out) throws IOException {
+		int nameStart = ChordClassifier.skipBlankspace(s, start, end) + 1;
+		String name = s.subSequence(nameStart, colon).toString().trim();
+		if (s.charAt(colon) == ':' && (name.equals("title") || name.equals("t")
+			|| name.equals("subtitle") || name.equals("st")
+			|| name.equals("comment") || name.equals("c")
+			|| name.equals("comment_italic") || name.equals("ci")
+			|| name.equals("comment_box") || name.equals("cb"))) {
+			int close = end;
+			while (s.charAt(close - 1) != '}') close--;
+			out.append(s.subSequence(colon + 1, close - 1).toString().trim());
+		} else {
+			out.append(s, start, end);
+		}
+		out.write('\n');
+	}
+	
+	/** Finds the end of a directive's name, if a line is a directive.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @return the index of the colon after the directive's name, or of the
+	 * closing brace if the directive has no value; -1 if the line is not
+	 * a directive
+	*/
+	private static int directiveEnd(CharSequence s, int start, int end) {
+		int first = ChordClassifier.skipBlankspace(s, start, end);
+		if (first == end || s.charAt(first) != '{') return -1;
+		int last = end - 1;
+		while (last > first && (ChordClassifier.isBlankspace(s.charAt(last)) 
+			|| s.charAt(last) == '\r')) {
+			last--;
+		}
+		if (last == first || s.charAt(last) != '}') return -1;
+		int colon = indexOf(s, ':', first + 1, last);
+		return (colon == -1) ? last : colon;
+	}
+	
+	/** Finds a char within a range of text.
+	 * @param s the text to search
+	 * @param c the char to find
+	 * @param start the starting index of the range
+	 * @param end the ending index of the range, noninclusive
+	 * @return the index of the char, or -1 if not found
+	*/
+	private static int indexOf(CharSequence s, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == c) return i;
+		}
+		return -1;
+	}
+	
+	/** Checks whether a builder holds only blankspace.
+	 * @param b the builder
+	 * @return true if every char is blankspace
+	*/
+	private static boolean isBlank(StringBuilder b) {
+		return isBlank(b, 0, b.length());
+	}
+	
+	/** Checks whether a range of text holds only blankspace.
+	 * @param s the text
+	 * @param start the starting index of the range
+	 * @param end the ending index of the range, noninclusive
+	 * @return true if every char is blankspace
+	*/
+	private static boolean isBlank(CharSequence s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (!ChordClassifier.isBlankspace(c) && c != '\r') return false;
+		}
+		return true;
+	}
+	
+	/** Reads a text one line at a time into a reusable buffer.
+	*/
+	private static class LineReader {
+		private Reader in = null; // the text
+		private char[] buf = new char[BUFFER_SIZE]; // the chars read
+		private CharBuffer seq = CharBuffer.wrap(buf);
+		private int len = 0; // num of chars in the buffer
+		private int start = 0; // start of the current line
+		private int end = 0; // end of the current line, without its break
+		private int next = 0; // start of the next line
+		private boolean eof = false; // flags the end of the text
+		
+		/** Constructs a line reader.
+		 * @param in the text to read
+		*/
+		public LineReader(Reader in) { this.in = in; }
+		
+		/** Advances to the next line.
+		 * @return false if no lines remain
+		 * @throws IOException if the reader fails
+		*/
+		public boolean next() throws IOException {
+			int scan = next;
+			while (true) {
+				for (; scan < len; scan++) {
+					if (buf[scan] == '\n') {
+						start = next;
+						end = scan;
+						next = scan + 1;
+						return true;
+					}
+				}
+				if (eof) {
+					// the last line may not have a line break
+					if (next == len) return false;
+					start = next;
+					end = len;
+					next = len;
+					return true;
+				}
+				// moves the unfinished line to the front of the buffer,
+				// growing the buffer if the line alone fills it
+				len -= next;
+				scan -= next;
+				if (next > 0) {
+					System.arraycopy(buf, next, buf, 0, len);
+				} else if (len == buf.length) {
+					char[] grown = new char[buf.length * 2];
+					System.arraycopy(buf, 0, grown, 0, len);
+					buf = grown;
+					seq = CharBuffer.wrap(buf);
+				}
+				next = 0;
+				int read = in.read(buf, len, buf.length - len);
+				if (read == -1) {
+					eof = true;
+				} else {
+					len += read;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.util.*;
+
+/** Matches chord suffixes, such as "sus" or "maj7", at a fixed position.
+ * The suffixes are compiled once into a trie, so that a match takes
+ * time proportional to the length of the suffix rather than to the
+ * number of suffixes in the list.  Each node's edges are stored
+ * sorted in flat arrays and found by binary search.  A compiled
+ * matcher is never modified and may be shared among threads.
+*/
+public class ChordSuffixMatcher {
+	
+	private final String[] suffixes; // suffixes in the order given
+	private final int[] edgeStart; // index of each node's first edge
+	private final char[] edgeChars; // edge labels, sorted within each node
+	private final int[] edgeTargets; // node reached by each edge
+	// index of the suffix that ends at each node; -1 if none
+	private final int[] terminals;
+	
+	/** Compiles a matcher from a comma-delimited list of suffixes.
+	 * @param list comma-delimited list, such as "#,b,/,sus,aug,dim,m"
+	*/
+	public ChordSuffixMatcher(String list) {
+		this(ChordClassifier.createArrayFromList(list));
+	}
+	
+	/** Compiles a matcher from an array of suffixes.
+	 * Empty suffixes are ignored, and duplicates are identified by their 
+	 * first occurrence in the array.
+	 * @param suffixes the suffixes to match
+	*/
+	public ChordSuffixMatcher(String[] suffixes) {
+		this.suffixes = suffixes.clone();
+		
+		// builds the trie with a sorted map of edges per node
+		ArrayList<TreeMap<Character, Integer>> nodes = 
+			new ArrayList<TreeMap<Character, Integer>>();
+		ArrayList<Integer> ends = new ArrayList<Integer>(); // suffix indices
+		nodes.add(new TreeMap<Character, Integer>());
+		ends.add(-1);
+		for (int i = 0; i < suffixes.length; i++) {
+			String suffix = suffixes[i];
+			if (suffix.length() == 0) continue;
+			int node = 0;
+			for (int j = 0; j < suffix.length(); j++) {
+				TreeMap<Character, Integer> edges = nodes.get(node);
+				Integer next = edges.get(suffix.charAt(j));
+				if (next == null) {
+					next = nodes.size();
+					edges.put(suffix.charAt(j), next);
+					nodes.add(new TreeMap<Character, Integer>());
+					ends.add(-1);
+				}
+				node = next;
+			}
+			if (ends.get(node) == -1) ends.set(node, i);
+		}
+		
+		// flattens the trie into arrays
+		int numNodes = nodes.size();
+		edgeStart = new int[numNodes + 1];
+		edgeChars = new char[numNodes - 1];
+		edgeTargets = new int[numNodes - 1];
+		terminals = new int[numNodes];
+		int edge = 0;
+		for (int node = 0; node < numNodes; node++) {
+			edgeStart[node] = edge;
+			terminals[node] = ends.get(node);
+			for (Map.Entry<Character, Integer> entry : nodes.get(node).entrySet()) {
+				edgeChars[edge] = entry.getKey();
+				edgeTargets[edge++] = entry.getValue();
+			}
+		}
+		edgeStart[numNodes] = edge;
+	}
+	
+	/** Checks whether any suffix starts at the given position.
+	 * Stops at the shortest matching suffix.
+	 * @param s the text to check
+	 * @param pos the position at which the suffix must start
+	 * @param end the index past which the suffix may not extend
+	 * @return true if a suffix is found
+	*/
+	public boolean matches(CharSequence s, int pos, int end) {
+		int node = 0;
+		while (pos < end && (node = child(node, s.charAt(pos++))) != -1) {
+			if (terminals[node] != -1) return true;
+		}
+		return false;
+	}
+	
+	/** Finds the longest suffix that starts at the given position.
+	 * @param s the text to check
+	 * @param pos the position at which the suffix must start
+	 * @param end the index past which the suffix may not extend
+	 * @return the index of the suffix in the list from which the matcher
+	 * was compiled; -1 if no suffix is found
+	*/
+	public int match(CharSequence s, int pos, int end) {
+		int node = 0;
+		int found = -1;
+		while (pos < end && (node = child(node, s.charAt(pos++))) != -1) {
+			if (terminals[node] != -1) found = terminals[node];
+		}
+		return found;
+	}
+	
+	/** Gets a suffix.
+	 * @param i the index of the suffix, as returned by 
+	 * {@link #match(CharSequence, int, int)}
+	 * @return the suffix
+	*/
+	public String getSuffix(int i) { return suffixes[i]; }
+	
+	/** Gets the number of suffixes in the list from which the matcher
+	 * was compiled.
+	 * @return the number of suffixes
+	*/
+	public int getSuffixCount() { return suffixes.length; }
+	
+	/** Follows an edge of the trie.
+	 * @param node the node to follow from
+	 * @param c the edge label
+	 * @return the node reached; -1 if the node has no such edge
+	*/
+	private int child(int node, char c) {
+		int lo = edgeStart[node];
+		int hi = edgeStart[node + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char midChar = edgeChars[mid];
+			if (midChar < c) {
+				lo = mid + 1;
+			} else if (midChar > c) {
+				hi = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,442 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+/** Transposes chords by a fixed number of half steps.
+ * Every chord family name, with or without a sharp or flat, is looked
+ * up in a table computed once for all twelve possible shifts, so that
+ * transposing a chord takes a single array lookup and creates no new 
+ * strings.  A transposer holds no state besides its shift and may be
+ * shared among threads.
+*/
+public class ChordTransposer implements ChordLineConverter {
+	
+	/* Constants */
+	/** Accidental index for a chord family name without a sharp or flat */
+	public static final int NATURAL = 0;
+	/** Accidental index for a sharpened chord family name */
+	public static final int SHARP = 1;
+	/** Accidental index for a flattened chord family name */
+	public static final int FLAT = 2;
+	/** Result for chord family names that can't be transposed */
+	public static final String UNKNOWN = "--";
+	private static final int NUM_NOTES = 12; // half steps per octave
+	// list of chords, stepping by one starting with A
+	private static final String fullChords[] = {
+		"A", "A#", "B", "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#"
+	};
+	// list of chords, stepping by one starting with Ab
+	private static final String fullChordsFlat[] = {
+		"Ab", "A", "Bb", "B", "C", "Db", "D", "Eb", "E", "F", "Gb", "G"
+	};
+	// transposed chords, indexed by family name from "A" to "G", 
+	// accidental, and number of half steps up
+	private static final String[][][] table = createTable();
+	// half steps above "A" of each family name, indexed by family name
+	// and accidental; -1 where the name appears in neither list
+	private static final int[][] semitones = createSemitones();
+	
+	private final int shift; // number of half steps up, from 0 to 11
+	// flag to keep chords in their columns above the lyrics
+	private final boolean alignChords;
+	// grammar of the chords whose family names are transposed; null to
+	// transpose every word
+	private final ChordGrammar grammar;
+	
+	/** Constructs a transposer.
+	 * @param steps the number of whole steps to increment, which may be 
+	 * negative
+	 * @param halfStep flags whether a half-step should be added to the
+	 * total number of steps to transpose (eg if 2 steps plus half-step, then
+	 * 2.5 whole steps', or 5 notes' increase)
+	*/
+	public ChordTransposer(int steps, boolean halfStep) {
+		this(steps, halfStep, false);
+	}
+	
+	/** Constructs a transposer that may keep chords aligned.
+	 * @param steps the number of whole steps to increment, which may be 
+	 * negative
+	 * @param halfStep flags whether a half-step should be added
+	 * @param alignChords true to keep each chord in its original column
+	 * wherever the blankspace around it allows
+	 * @see #transposeLine(CharSequence, int, int, StringBuilder)
+	*/
+	public ChordTransposer(int steps, boolean halfStep, boolean alignChords) {
+		this(steps, halfStep, alignChords, null);
+	}
+	
+	/** Constructs a transposer that may transpose only the words that 
+	 * are chords.
+	 * @param steps the number of whole steps to increment, which may be 
+	 * negative
+	 * @param halfStep flags whether a half-step should be added
+	 * @param alignChords true to keep each chord in its original column
+	 * wherever the blankspace around it allows
+	 * @param grammar the grammar that a word must match for its family
+	 * name and bass note to be transposed; null to transpose every word
+	 * @see #findRoot(CharSequence, int, int, boolean, ChordGrammar)
+	*/
+	public ChordTransposer(int steps, boolean halfStep, boolean alignChords, 
+		ChordGrammar grammar) {
+		this.alignChords = alignChords;
+		this.grammar = grammar;
+		int totSteps = 2 * steps; // the total number of steps to shift
+		// adds a half-step if applicable
+		if (halfStep) totSteps += 1;
+		// wraps around to the equivalent shift within an octave
+		shift = floorMod(totSteps, NUM_NOTES);
+	}
+	
+	/** Builds the table of transposed chords.
+	 * Flattened chords are transposed within the list of flats, and all
+	 * others within the list of sharps.  Combinations that appear in 
+	 * neither list, such as "E#" or "Cb", always give {@link #UNKNOWN}.
+	 * @return the table, indexed by family name, accidental, and 
+	 * half steps up
+	*/
+	private static String[][][] createTable() {
+		String[][][] table = new String[7][3][NUM_NOTES];
+		for (int i = 0; i < 7; i++) {
+			String name = String.valueOf((char) ('A' + i));
+			fillRow(table[i][NATURAL], name, fullChords);
+			fillRow(table[i][SHARP], name + "#", fullChords);
+			fillRow(table[i][FLAT], name + "b", fullChordsFlat);
+		}
+		return table;
+	}
+	
+	/** Builds the table of half steps above "A".
+	 * @return the table, indexed by family name and accidental
+	*/
+	private static int[][] createSemitones() {
+		int[][] semitones = new int[7][3];
+		for (int i = 0; i < 7; i++) {
+			String name = String.valueOf((char) ('A' + i));
+			semitones[i][NATURAL] = indexOf(name, fullChords);
+			semitones[i][SHARP] = indexOf(name + "#", fullChords);
+			// the list of flats starts a half step below "A"
+			int flat = indexOf(name + "b", fullChordsFlat);
+			semitones[i][FLAT] = (flat == -1) ? -1 : floorMod(flat - 1, NUM_NOTES);
+		}
+		return semitones;
+	}
+	
+	/** Finds a chord in a list of chords.
+	 * @param chord the chord to find
+	 * @param chordList the list to search
+	 * @return the chord's index in the list, or -1 if not found
+	*/
+	private static int indexOf(String chord, String[] chordList) {
+		for (int i = 0; i < chordList.length; i++) {
+			if (chord.equals(chordList[i])) return i;
+		}
+		return -1;
+	}
+	
+	/** Fills in the transpositions of a single chord.
+	 * @param row the row to fill, indexed by half steps up
+	 * @param chord the chord to transpose
+	 * @param chordList the list of chords in which to find the chord and its
+	 * transpositions
+	*/
+	private static void fillRow(String[] row, String chord, String[] chordList) {
+		int chordPos = indexOf(chord, chordList);
+		for (int shift = 0; shift < NUM_NOTES; shift++) {
+			row[shift] = (chordPos == -1) 
+				? UNKNOWN : chordList[(chordPos + shift) % NUM_NOTES];
+		}
+	}
+	
+	/** Transposes a single chord family name.
+	 * @param root the chord family name, from "A" to "G"
+	 * @param accidental {@link #NATURAL}, {@link #SHARP}, or {@link #FLAT}
+	 * @return the transposed chord; {@link #UNKNOWN} if the chord family 
+	 * isn't found
+	*/
+	public String transposeChord(char root, int accidental) {
+		return transposeChord(root, accidental, shift);
+	}
+	
+	/** Transposes a single chord family name by a given number of 
+	 * half steps.
+	 * @param root the chord family name, from "A" to "G"
+	 * @param accidental {@link #NATURAL}, {@link #SHARP}, or {@link #FLAT}
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @return the transposed chord; {@link #UNKNOWN} if the chord family 
+	 * isn't found
+	*/
+	public static String transposeChord(char root, int accidental, 
+		int halfSteps) {
+		return (root < 'A' || root > 'G') 
+			? UNKNOWN : table[root - 'A'][accidental][halfSteps];
+	}
+	
+	/** Finds the number of half steps from "A" up to a chord family name,
+	 * so that chords can be transposed by simple arithmetic.
+	 * @param root the chord family name, from "A" to "G"
+	 * @param accidental {@link #NATURAL}, {@link #SHARP}, or {@link #FLAT}
+	 * @return the number of half steps, from 0 to 11; -1 if the chord 
+	 * family isn't found
+	*/
+	public static int toSemitone(char root, int accidental) {
+		return (root < 'A' || root > 'G') ? -1 : semitones[root - 'A'][accidental];
+	}
+	
+	/** Names the chord family a given number of half steps above "A".
+	 * @param semitone the number of half steps, from 0 to 11
+	 * @param flat true to name the chord with a flat rather than a sharp
+	 * @return the chord family name
+	 * @see #toSemitone(char, int)
+	*/
+	public static String toChordName(int semitone, boolean flat) {
+		return flat ? fullChordsFlat[(semitone + 1) % NUM_NOTES] 
+			: fullChords[semitone];
+	}
+	
+	/** Transposes a single chord.
+	 * @param chord the chord family name, including any sharp or flat
+	 * @return the transposed chord; {@link #UNKNOWN} if the chord family 
+	 * isn't found
+	*/
+	public String transposeChord(String chord) {
+		int len = chord.length();
+		if (len == 1) return transposeChord(chord.charAt(0), NATURAL);
+		if (len != 2) return UNKNOWN;
+		switch (chord.charAt(1)) {
+			case '#': return transposeChord(chord.charAt(0), SHARP);
+			case 'b': return transposeChord(chord.charAt(0), FLAT);
+			default: return UNKNOWN;
+		}
+	}
+	
+	/** Transposes a line of chords.
+	 * Any non-blankspace that follows blankspace, "/", or "(" is taken
+	 * as a chord family name, together with a sharp or flat sign 
+	 * immediately following it, and transposed, unless a grammar limits
+	 * the family names to those of the words that are chords.  All other 
+	 * characters are copied as they are, unless keeping the chords 
+	 * aligned.  Chords
+	 * that grow longer, such as "E" to "F#", then take up the extra columns
+	 * from the spaces that follow them, leaving at least one blankspace
+	 * before the next chord, while chords that grow shorter are followed
+	 * by extra spaces, so that later chords stay above the same lyrics.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param out the builder to which the transposed line is appended
+	*/
+	public void transposeLine(CharSequence s, int start, int end, 
+		StringBuilder out) {
+		if (alignChords) {
+			transposeAligned(s, start, end, out);
+			return;
+		}
+		int n = start; // end of the text written so far
+		int root = findRoot(s, start, end, true, grammar);
+		while (root != -1) {
+			out.append(s, n, root);
+			// includes the sharp or flat sign if it immediately follows
+			int accidental = accidentalAt(s, root + 1, end);
+			out.append(transposeChord(s.charAt(root), accidental));
+			n = root + ((accidental == NATURAL) ? 1 : 2);
+			root = findRoot(s, n, end, false, grammar);
+		}
+		out.append(s, n, end);
+	}
+	
+	/** Transposes a line of chords, keeping the chords aligned.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param out the builder to which the transposed line is appended
+	*/
+	private void transposeAligned(CharSequence s, int start, int end, 
+		StringBuilder out) {
+		int drift = 0; // num of columns the output runs ahead of the text
+		int n = start; // end of the text written so far
+		int root = findRoot(s, start, end, true, grammar);
+		while (root != -1) {
+			drift = appendAligned(s, n, root, end, drift, true, out);
+			int accidental = accidentalAt(s, root + 1, end);
+			String chord = transposeChord(s.charAt(root), accidental);
+			out.append(chord);
+			int length = (accidental == NATURAL) ? 1 : 2;
+			drift += chord.length() - length;
+			n = root + length;
+			root = findRoot(s, n, end, false, grammar);
+		}
+		appendAligned(s, n, end, end, drift, false, out);
+	}
+	
+	/** Finds the next chord family name in a chordal line.
+	 * Without a grammar, any non-blankspace that follows blankspace, "/",
+	 * or "(" is taken as a family name.  With a grammar, only the words
+	 * that match it are chords, whose family names are their first char 
+	 * and any bass note after a "/"; other words are skipped.
+	 * @param s the text containing the line
+	 * @param pos the position at which to start searching
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param lineStart true if <code>pos</code> is the start of the line,
+	 * and false if it directly follows an earlier family name or a part
+	 * of its chord
+	 * @param grammar the grammar of chords; null to take every word
+	 * @return the position of the family name; -1 if there are no more
+	*/
+	static int findRoot(CharSequence s, int pos, int end, 
+		boolean lineStart, ChordGrammar grammar) {
+		if (grammar == null) {
+			boolean followsBlankspace = lineStart;
+			for (; pos < end; pos++) {
+				char c = s.charAt(pos);
+				// treats "/" and "(" as blankspaces to allow transposition of 
+				// chords placed in an alternate position
+				if (ChordClassifier.isBlankspace(c) || c == '/' || c == '(') {
+					followsBlankspace = true;
+				} else if (followsBlankspace) {
+					return pos;
+				}
+			}
+			return -1;
+		}
+		if (!lineStart) {
+			// finishes the current chord, which may have a bass note
+			for (; pos < end; pos++) {
+				char c = s.charAt(pos);
+				if (ChordClassifier.isBlankspace(c)) break;
+				if (c == '/' && pos + 1 < end) {
+					char bass = s.charAt(pos + 1);
+					if (bass >= 'A' && bass <= 'G') return pos + 1;
+				}
+			}
+		}
+		while ((pos = ChordClassifier.skipBlankspace(s, pos, end)) < end) {
+			int wordEnd = ChordClassifier.skipNonBlankspace(s, pos, end);
+			if (grammar.matches(s, pos, wordEnd)) return pos;
+			pos = wordEnd;
+		}
+		return -1;
+	}
+	
+	/** Finds the accidental that may follow a chord family name.
+	 * @param s the text containing the chord
+	 * @param pos the position just after the family name
+	 * @param end the ending index of the line
+	 * @return {@link #SHARP} or {@link #FLAT} if the sign is at 
+	 * <code>pos</code>, and {@link #NATURAL} otherwise
+	*/
+	static int accidentalAt(CharSequence s, int pos, int end) {
+		if (pos < end) {
+			char c = s.charAt(pos);
+			if (c == '#') return SHARP;
+			if (c == 'b') return FLAT;
+		}
+		return NATURAL;
+	}
+	
+	/** Copies the text between two chord family names, taking up or
+	 * giving back columns to keep the next chord aligned.
+	 * Spaces are dropped while the output runs ahead of the text, as long
+	 * as another blankspace follows, and spaces are added before the next
+	 * chord while the output lags behind the text, if a blankspace
+	 * precedes that chord.
+	 * @param s the text containing the line
+	 * @param start the starting index of the text to copy
+	 * @param end the ending index of the text to copy, noninclusive
+	 * @param lineEnd the ending index of the line
+	 * @param drift the number of columns by which the output runs ahead
+	 * of the text, or lags behind it if negative
+	 * @param beforeChord true if a chord family name follows the text
+	 * @param out the builder to which the text is appended
+	 * @return the number of columns by which the output runs ahead of 
+	 * the text afterward
+	*/
+	static int appendAligned(CharSequence s, int start, int end, int lineEnd,
+		int drift, boolean beforeChord, StringBuilder out) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (drift > 0 && c == ' ' && i + 1 < lineEnd 
+				&& ChordClassifier.isBlankspace(s.charAt(i + 1))) {
+				drift--;
+			} else {
+				out.append(c);
+			}
+		}
+		if (beforeChord && drift < 0 && end > start 
+			&& ChordClassifier.isBlankspace(s.charAt(end - 1))) {
+			for (; drift < 0; drift++) out.append(' ');
+		}
+		return drift;
+	}
+	
+	/** Transposes a chordal line.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param out the builder to which the transposed line is appended
+	 * @return true, to always keep the line
+	 * @see #transposeLine(CharSequence, int, int, StringBuilder)
+	*/
+	public boolean convertChordLine(CharSequence s, int start, int end, 
+		StringBuilder out) {
+		transposeLine(s, start, end, out);
+		return true;
+	}
+	
+	/** Transposes a line of chords.
+	 * @param line the line of chords to transpose
+	 * @return the transposed line
+	 * @see #transposeLine(CharSequence, int, int, StringBuilder)
+	*/
+	public String transposeLine(String line) {
+		StringBuilder out = new StringBuilder(line.length());
+		transposeLine(line, 0, line.length(), out);
+		return out.toString();
+	}
+	
+	/** Finds the remainder of a division, always positive for a 
+	 * positive divisor.
+	 * @param a the dividend
+	 * @param b the divisor
+	 * @return the remainder, from 0 to <code>b - 1</code>
+	*/
+	private static int floorMod(int a, int b) {
+		int mod = a % b;
+		return (mod < 0) ? mod + b : mod;
+	}
+
+}
@@ -42,6 +42,7 @@ import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 /** Customizes song sheets for musical performance or distribution.
  * For now the two main features are transposing chords and taking 
@@ -56,24 +57,28 @@ public class Plug extends PlugInWindow {
 	/* Constants */
 	// generally accepted represenation of the flat sign
 	private static final String FLAT = "b"; 
+	// num of lines to check for ChordPro directives or chords
+	private static final int CHORDPRO_LINES = 50;
+	// smallest text worth converting in the background
+	private static final int BACKGROUND_SIZE = 1 << 18;
+	// approximate num of chars converted between progress reports
+	private static final int PROGRESS_BLOCK_SIZE = 1 << 16;
+	private static final String ACTION_NAME = "Song Sheet Maker";
 
 	private SongSheetDialog diag = null; // the GUI dialog window
-	private String chordIndicatorsList = ""; // list of chord suffixes
-	private int threshold = 2; // num of chords to check, if possible
-	private boolean transpose = false; // flag for transpose mode
-	private int transposeSteps = 0; // number of full steps to transpose up
-	// flag to transpose an extra half step up
-	private boolean transposeHalfStep = false; 
-	private boolean selectedRegion = false; // flag for selected region only
-	private static final String chords = "ABCDEFG"; // chords
-	// list of chords, stepping by one starting with A
-	private static final String fullChords[] = {
-		"A", "A#", "B", "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#"
-	};
-	// list of chords, stepping by one starting with Ab
-	private static final String fullChordsFlat[] = {
-		"Ab", "A", "Bb", "B", "C", "Db", "D", "Eb", "E", "F", "Gb", "G"
-	};
+	// converts the text, remembering each line's conversion between runs
+	// until the options change
+	private SongSheetIncrementalConverter converter = 
+		new SongSheetIncrementalConverter(
+			new SongSheetOptions("", 2, false, 0, false, false));
+	private boolean allKeys = false; // flag to transpose into every key
+	private SongSheetKey targetKey = null; // key to transpose into, if any
+	// runs the plug-in, or cancels the conversion in the background
+	private Action songSheetAction = null;
+	// converts large texts in the background; null if not converting
+	private ConversionWorker worker = null;
+	// conversion finished in the background, waiting to be applied
+	private ConversionWorker finished = null;
 
 	/** Constructs the extra returns remover with descriptive text and 
 	images.
@@ -99,19 +104,23 @@ public class Plug extends PlugInWindow {
 
 
 		// Runs the plug-in if the user hits the "Song Sheet Maker"
-		// button;
+		// button, or cancels the conversion in the background if running;
 		// creates a shortcut key (alt-S) as an alternative way to invoke
 		// the button
-		Action songSheetAction = 
-			new AbstractAction("Song Sheet Maker", null) {
+		songSheetAction = 
+			new AbstractAction(ACTION_NAME, null) {
 			public void actionPerformed(ActionEvent e) {
+				if (worker != null) {
+					worker.cancel(false);
+					return;
+				}
 				applyUserOptions();
 				runPlugIn();
 			}
 		};
 		LibTTx.setAcceleratedAction(
 			songSheetAction,
-			"Song Sheet Maker",
+			ACTION_NAME,
 			'S',
 			KeyStroke.getKeyStroke("alt S"));
 
@@ -126,12 +135,9 @@ public class Plug extends PlugInWindow {
 	/** Applies the user-defined options from the graphical interface.
 	*/
 	public void applyUserOptions() {
-		chordIndicatorsList = diag.getChordIndicatorsList();
-		threshold = diag.getThreshold();
-		transpose = diag.getTranspose();
-		transposeSteps = diag.getSteps();
-		transposeHalfStep = diag.getHalfStep();
-		selectedRegion = diag.getSelectedRegion();
+		converter.setOptions(diag.getOptions());
+		allKeys = diag.getAllKeys();
+		targetKey = diag.getTargetKey();
 	}
 
 	/** Gets the normal icon.
@@ -168,10 +174,14 @@ public class Plug extends PlugInWindow {
 	
 	/**Runs the song sheet maker on the text, following the options
 	 * set in the dialogue window.
-	 * Assumes that these options have been recorded in the class
-	 * fields.
-	 * Features TODO include splitting the method into chord transposer,
-	 * chord remover, and other functions.
+	 * Assumes that these options have been applied through
+	 * <code>applyUserOptions</code>.  Most texts are converted right away
+	 * by a <code>SongSheetIncrementalConverter</code>, which only converts 
+	 * the lines that have changed since the last run.  Large texts are 
+	 * instead converted in the background, leaving the text unchanged 
+	 * for now, so that the editor stays responsive.  Once the background
+	 * conversion finishes, the plug-in runs itself again to apply the 
+	 * converted text, but only if the text is still the same.
 	 * @param s the string to remove extraneous returns from
 	 * @param x the starting index of any selected region, taken as the 
 	 * starting position to work on, but ignored
@@ -180,309 +190,287 @@ public class Plug extends PlugInWindow {
 	 * ending position, noninclusive, on which to work, but ignored if
 	 * the "selectedArea" option is unchecked
 	 * @return the text, clean, washed, and ready
+	 * @see SongSheetIncrementalConverter#run(String, int, int)
 	*/
 	public PlugInOutcome run(String s, int x, int y) {
-		/* This function works by generally checking the characters afer
-		 * a hard return to determine whether to keep it or not.
-		 * To strip inline message reply characters, the function must also
-		 * check the beginning of the string separately.  Additionally, the
-		 * function completely excludes "<pre>"-tag-delimited areas from hard
-		 * return removal.
-		 */
-		
-		/* Indices */
-		int n = x; // string index
-		int end = y;
-		// resets the indices to work on the entire text if the selected region
-		// option is unchecked
-		if (!selectedRegion) {
-			n = 0;
-			end = s.length();
-		}
-		// number of words to check per line, defaulting to 1000
-		int appliedThreshold = (threshold == 0) ? 1000 : threshold;
-		
-		/* Flags, storage, and symbols */
-		StringBuffer stripped = new StringBuffer(end - n); // storage string buffer
-		stripped.append(s.substring(0, n)); // add preceding lines if selected area
-		int lineBreak = 0; // end of the line, line break non-inclusive
-		String line = ""; // the current line
-		// strings that can follow a chord family name
-		String[] chordIndicators = createArrayFromList(chordIndicatorsList);
-		String transposedLine = ""; // the current working line
-		int linesChanged = 0; // records num of lines changed
-		
-		/* Removes chord lines */
-		while (n < end) {
-			// finds the end of the line, whether defined by an "\n" or the end
-			// of the text
-			lineBreak = s.indexOf("\n", n);
-			line = (lineBreak != -1) ? s.substring(n, lineBreak) : s.substring(n);
-			
-			// tracks the position within the line, starting after blankspace
-			int offset = 0;
-			int linePos = countBlankspace(line, 0);
-			boolean chordLine = false; // flags chordal lines
-			
-			// Determines if the line is chordal
-			int count = 0; // records num of chords checked
-			// Cycles through works in a line until determines that not chordal
-			do {
-				if (!line.substring(linePos).equals("")) {
-					chordLine = isChord(line, linePos, chordIndicators);
-				}
-				// skips to next word
-				linePos = nextWordInLinePos(line, linePos);
-			} while (++count < appliedThreshold 
-				&& chordLine && linePos != -1 && linePos < line.length());
-			// continues only until checked only user-defined num of chords,
-			// all words so far have been chords, and the end of the line has not 
-			// been reached
-			
-			// retains the line if not flagged as chordal or if user-chosen transpose
-			if (!chordLine) {
-				stripped.append(line + "\n");
-				linesChanged++;
-			} else if (transpose) {
-				transposedLine = transposeLine(line);
-				stripped.append(transposedLine + "\n");
-				linesChanged++;
+		// applies a conversion finished in the background
+		if (finished != null) {
+			ConversionWorker conversion = finished;
+			finished = null;
+			if (!conversion.isFor(s, x, y)) {
+				displayResults(new String[] { 
+					"Text changed while converting; please run again" }, 1);
+				return new PlugInOutcome();
 			}
-			// advances to next line
-			n += line.length() + 1;
-			
+			Conversion result = conversion.getResult();
+			displayResults(new String[] { result.message }, 1);
+			return new PlugInOutcome(result.text);
 		}
+		// leaves the text alone until the conversion underway finishes
+		if (worker != null) return new PlugInOutcome();
 		
-		if (transpose) {
-			displayResults(new String[] { linesChanged + " lines transposed" }, 1);
-		} else {
-			displayResults(new String[] { linesChanged + " lines deposed" }, 1);
+		SongSheetOptions runOptions = converter.getOptions();
+		if (s.length() >= BACKGROUND_SIZE) {
+			worker = new ConversionWorker(s, x, y, runOptions);
+			songSheetAction.putValue(Action.NAME, "Cancel");
+			displayResults(new String[] { "Converting..." }, 1);
+			worker.execute();
+			return new PlugInOutcome();
 		}
-		
-		// Creates the output string, appending the rest of the text if left over
-		// after selected region
-		String strippedStr = stripped.toString();
-		if (n < s.length()) strippedStr += s.substring(n);
-		return new PlugInOutcome(strippedStr);
-					
-	}
-	
-	/** Determines if a word is a chord.
-	 * Chords are defined as words that begin with a capitalized chord
-	 * family name, including sharps (eg "A" or "A#"), followed by nothing,
-	 * a digit, or one of a list of chord indicators (eg "sus", "aug").
-	 * @param line the entire line in which the word resides
-	 * @param linePos the position of the word within the line
-	 * @param chordIndicators array of strings that follow the chord family
-	 * name and indicate chords
-	 * @return true if the word is a chord
-	*/
-	public boolean isChord(String line, int linePos, String[] chordIndicators) {
-		// finds chords according to the criteria:
-		// -begins with a chord family name, in caps
-		// -is followed by a chord indicator, a digit, blankspace, or nothing 
-		// (end of line or file)
-		return (linePos == -1
-			|| (chords.indexOf(line.charAt(linePos)) != -1
-				&& (linePos + 1 >= line.length()
-					|| Character.isDigit(line.charAt(linePos + 1))
-					|| strPosTest(line, linePos, 1, chordIndicators) != -1
-					|| isBlankspace(line.charAt(linePos + 1)))));
-	}
-	
-	/** Transposes the line.
-	 * Shifts the chords according to user-defined number of steps via the gui.
-	 * @param line the line of chords to transpose
-	 * @return the transposed line
-	*/
-	public String transposeLine(String line) {
-		// buffer for the newly transposing line
-		StringBuffer strBuffer = new StringBuffer(line.length());
-		// flag whether a char follows a blankspace, which would indicate
-		// that the char is a chord family name
-		boolean followsBlankspace = true;
-		char c = 0; // the current character
-		String chord = ""; // the current chord
-		
-		// Cycles through characters to find chords
-		for (int n = 0; n < line.length(); n++) {
-			// Skips over blankspaces and flags as such;
-			// treats "/" and "(" as blankspaces to allow transposition of chords
-			// placed in an alternate position
-			if (isBlankspace(chord = line.substring(n, n + 1))
-				|| chord.equals("/")
-				|| chord.equals("(")) {
-				followsBlankspace = true;
-			} else if (followsBlankspace) {
-				// converts non-blankspace chars that follow blankspaces:
-				// chord family names;
-				// includes the sharp sign if it immediately follows the char
-				char halfStep = 0;
-				if (n < line.length() - 1 
-					&& ((halfStep = line.charAt(n + 1)) == '#') || halfStep == 'b') {
-					chord = line.substring(n, n + 2);
-					n++;
-				}
-				chord = transposeChord(chord, transposeSteps, transposeHalfStep);
-				followsBlankspace = false;
-			}
-			strBuffer.append(chord);
+		Conversion result = convertWhole(s, x, y, runOptions, allKeys, 
+			targetKey);
+		if (result == null) {
+			SongSheetOutcome outcome = converter.run(s, x, y);
+			result = new Conversion(outcome.getText(), 
+				linesMessage(outcome.getLinesChanged(), runOptions));
 		}
-		return strBuffer.toString();
+		displayResults(new String[] { result.message }, 1);
+		return new PlugInOutcome(result.text);
 	}
 	
-	/** Transposes a single chord.
-	 * Shifts the chord according to the user-defined number of steps.
-	 * @param chord the chord to transpose
-	 * @param steps the number of whole steps to increment
-	 * @param halfStep flags whether a half-step should be added to the
-	 * total number of steps to transpose (eg if 2 steps plus half-step, then
-	 * 2.5 whole steps', or 5 notes' increase)
-	 * @return the transposed chord; "--" if the chord family isn't found
+	/** Runs the song sheet maker on the text, returning only the edits
+	 * that it makes, for hosts that can patch their document in place 
+	 * rather than replace all of its text.
+	 * Follows the same options as {@link #run(String, int, int)}, but 
+	 * always converts right away, however large the text, since applying
+	 * the few edits of a large song sheet costs far less than replacing
+	 * it.  Conversions that need the whole text at once, such as into all
+	 * twelve keys, give a single edit replacing the entire text.
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the edits, which give the converted text once applied to
+	 * <code>s</code>
+	 * @see SongSheetEdits#applyTo(javax.swing.text.Document)
 	*/
-	public String transposeChord(String chord, int steps, boolean halfStep) {
-		boolean isFlat = chord.indexOf("b") == 1;
-//		System.out.println("chord: " + chord + ", isFlat: " + isFlat);
-		String[] chordList = isFlat ? fullChordsFlat : fullChords;
-		int totSteps = 2 * steps; // the total number of steps to shift
-		// adds a half-step if applicable //, subtracting if the steps are negative
-		if (halfStep)
-			totSteps += 1; //+= (steps >= 0) ? 1 : -1;
-		int chordPos = -1; // the current chord position, set to -1 b/c of initial increment
-		// locates the chord in the array of chord families, which include sharps
-		while (++chordPos < chordList.length && !chord.equals(chordList[chordPos]));
-		
-		// Returns blank if chord not found
-		if (chordPos >= chordList.length) return "--";
-		chordPos += totSteps;
-		// Wraps around to first chord family and continues to cycle through families
-		// until reaches the specified number of steps
-		while (chordPos < 0) chordPos += chordList.length;
-		while (chordPos >= chordList.length) chordPos -= chordList.length;
-		return chordList[chordPos];
-	}
-	
-	/** Tests whether any of an array of strings is found at
-	 * a given position within another string
-	 * @param s the string to search in
-	 * @param offset the position at which to start looknig for strings from the array
-	 * @param pos the number of positions past the offset at which to find
-	 * the strings; if negative, will always return false
-	 * @param strTests strings to find in s
-	 * @return true if any of the strings in the array are found at offset + pos
-	 * in s
-	*/
-	public int strPosTest(String s, int offset, int pos, String[] strTests) {
-		// check to see if any of the elements in the array are found at 
-		// offset + pos within the search string;
-		// returns true as soon as any are found
-		for (int n = 0; n < strTests.length; n++) {
-			if ((s.indexOf(strTests[n], offset) == offset + pos)) return n;
+	public SongSheetEdits runEdits(String s, int x, int y) {
+		SongSheetOptions runOptions = converter.getOptions();
+		Conversion result = convertWhole(s, x, y, runOptions, allKeys, 
+			targetKey);
+		SongSheetEdits edits = null;
+		if (result == null) {
+			edits = new SongSheetEngine(runOptions).runEdits(s, x, y);
+			result = new Conversion(null, 
+				linesMessage(edits.getLinesChanged(), runOptions));
+		} else {
+			edits = new SongSheetEdits();
+			edits.add(0, s.length(), result.text);
 		}
-		return -1;
+		displayResults(new String[] { result.message }, 1);
+		return edits;
 	}
 	
-	/** Counts the number of blankspace--tabs or spaces--that
-	 * start at and are continuous from the given position.
-	 * @param s the string to search
-	 * @param offest the position at which to start searching
-	 * @return the number of blankspaces
+	/** Converts the text in any of the ways that need the whole text 
+	 * at once: keeping ChordPro as ChordPro, transposing into all twelve
+	 * keys, or transposing into a particular key.
+	 * Touches nothing but its arguments, so that it can run on any thread.
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @param runOptions the options with which to convert
+	 * @param allKeys true to transpose into all twelve keys
+	 * @param targetKey the key to transpose into; null for none
+	 * @return the converted text and results message; null if the text
+	 * needs none of these conversions
 	*/
-	public int countBlankspace(String s, int offset) {
-		int n = 0;
-		// counts the number of blankspaces starting at offset and
-		// continuing unbroken
-		while (offset + n < s.length() && isBlankspace(s, offset + n)) n++;
-		return n;
-	}
-	
-	/** Counts the number of non-blankspaces--neither tabs nor spaces--that
-	 * start at and are continuous from the given position.
-	 * @param s the string to search
-	 * @param offest the position at which to start searching
-	 * @return the number of non-blankspaces
-	*/
-	public int countNonBlankspace(String s, int offset) {
-		int n = 0;
-		// counts the number of non-blankspaces starting at offset and
-		// continuing unbroken
-		while (offset + n < s.length() && !isBlankspace(s, offset + n)) n++;
-		return n;
-	}
-	
-	/** Checks if the character at the given position is a space or tab.
-	 * @param s the string to search
-	 * @param offset the position to check
-	 * @return true if the character is a blankspace
-	*/
-	public boolean isBlankspace(String s, int offset) {
-		char c = s.charAt(offset);//0;
-		return isBlankspace(c);//test;
-	}
-	
-	/** Checks if the character is a space or tab.
-	 * @param c the character to check
-	 * @return true if the character is a space or tab.
-	*/
-	public boolean isBlankspace(char c) {
-		return c == ' ' || c == '\t' || c == '\240';// || c == '(';
+	private static Conversion convertWhole(String s, int x, int y, 
+		SongSheetOptions runOptions, boolean allKeys, SongSheetKey targetKey) {
+		// keeps ChordPro song sheets in ChordPro
+		ChordProConverter chordPro = new ChordProConverter(runOptions);
+		if (chordPro.isChordPro(s, CHORDPRO_LINES)) {
+			SongSheetOutcome outcome = chordPro.run(s, x, y);
+			return new Conversion(outcome.getText(), outcome.getLinesChanged() 
+				+ " ChordPro lines " 
+				+ (runOptions.getTranspose() ? "transposed" : "deposed"));
+		}
+		if (!runOptions.getTranspose()) return null;
+		// transposes into all twelve keys, one after another, from a single
+		// pass through the text
+		if (allKeys) {
+			SongSheetOutcome outcome = 
+				new SongSheetKeyExporter(runOptions).runAllKeysInPlace(s, x, y);
+			return new Conversion(outcome.getText(), outcome.getLinesChanged() 
+				+ " lines transposed into " + SongSheetKeyExporter.NUM_KEYS 
+				+ " keys");
+		}
+		// finds the song's key before transposing it into the chosen key
+		if (targetKey != null) {
+			SongSheetModel model = 
+				new SongSheetEngine(runOptions).parse(s, x, y);
+			SongSheetKey key = model.estimateKey();
+			if (key == null) return new Conversion(s, "No chords to find the key");
+			SongSheetOutcome outcome = model.transpose(key.getShiftTo(targetKey), 
+				runOptions.getAlignChords(), targetKey);
+			return new Conversion(outcome.getText(), outcome.getLinesChanged() 
+				+ " lines transposed from " + key + " to " + targetKey);
+		}
+		return null;
 	}
 	
-	/** Checks if the first character of the given string is a space or tab.
-	 * @param string the string to check
-	 * @return true if the first character is a space or tab.
+	/** Describes the number of lines converted.
+	 * @param linesChanged the number of lines transposed or kept
+	 * @param runOptions the options with which the lines were converted
+	 * @return the results message
 	*/
-	public boolean isBlankspace(String s) {
-		return isBlankspace(s.charAt(0));
+	private static String linesMessage(long linesChanged, 
+		SongSheetOptions runOptions) {
+		return linesChanged 
+			+ (runOptions.getTranspose() ? " lines transposed" : " lines deposed");
 	}
 	
-	/** Finds the position of the next word in a line.
-	 * First passes over non-blankspaces, then blankspaces to reach
-	 * the beginning of the next word, skipping over any characters
-	 * in the current word.
-	 * @param s the line to search
-	 * @param offset the position at which to start searching
-	 * @return the position of the next word; -1 if no words left, 
-	 * such as at the end of the line
+	/** Restores the plug-in after a conversion in the background ends,
+	 * whether finished or cancelled.
 	*/
-	public int nextWordInLinePos(String s, int offset) {
-		String line = "";
-		// first skips non-blankspaces
-		int n = countNonBlankspace(s, offset);
-		// then skips subsequent blankspaces
-		n += countBlankspace(s, offset + n);
-		// bringing position to next non-blankspace
-		return (offset + n >= s.length()) ? -1 : offset + n;
+	private void endConversion() {
+		worker = null;
+		songSheetAction.putValue(Action.NAME, ACTION_NAME);
 	}
 	
-	/** Finds the  next word in a line.
-	 * First passes over non-blankspaces, then blankspaces to reach
-	 * the beginning of the next word, skipping over any characters
-	 * in the current word.
-	 * @param s the line to search
-	 * @param offset the position at which to start searching
-	 * @return the next word; "" if no words left, 
-	 * such as at the end of the line
+	/** A converted text along with its results message.
 	*/
-	public String nextWordInLine(String s, int offset) {
-		int n = nextWordInLinePos(s, offset);
-		return (n < 0 || n >= s.length()) ? "" : s.substring(n);
+	private static class Conversion {
+		private String text = null; // the converted text
+		private String message = null; // the results message
+		
+		/** Constructs a converted text.
+		 * @param text the converted text
+		 * @param message the results message
+		*/
+		public Conversion(String text, String message) {
+			this.text = text;
+			this.message = message;
+		}
 	}
 	
-	/** Creates an array from a comma-delimited string.
-	 * @param list comma-delimited string
-	 * @return an string array
+	/** Converts a text on a background thread, reporting the number of
+	 * lines converted so far in the results label.
+	 * The text is converted a block of lines at a time, checking for 
+	 * cancellation between blocks, except when it needs to be converted
+	 * whole.
 	*/
-	private String[] createArrayFromList(String list) {
-		StringTokenizer tok = new StringTokenizer(list, ",");
-		String[] array = new String[tok.countTokens()];
-		int n = 0;
-		while (tok.hasMoreTokens()) {
-			array[n++] = tok.nextToken();
+	private class ConversionWorker extends SwingWorker<Conversion, Long> {
+		private String s = null; // the text to convert
+		private int x = 0; // starting index of any selected region
+		private int y = 0; // final index of any selected region
+		private SongSheetOptions runOptions = null; // the options
+		private boolean allKeys = false; // flag to transpose into every key
+		private SongSheetKey targetKey = null; // key to transpose into
+		private Conversion result = null; // the finished conversion
+		
+		/** Constructs a worker, taking the plug-in's current options.
+		 * @param s the text to convert
+		 * @param x the starting index of any selected region
+		 * @param y the final index of any selected region, noninclusive
+		 * @param runOptions the options with which to convert
+		*/
+		public ConversionWorker(String s, int x, int y, 
+			SongSheetOptions runOptions) {
+			this.s = s;
+			this.x = x;
+			this.y = y;
+			this.runOptions = runOptions;
+			allKeys = Plug.this.allKeys;
+			targetKey = Plug.this.targetKey;
+		}
+		
+		/** Checks whether the worker converted a given text.
+		 * @param text the text
+		 * @param start the starting index of any selected region
+		 * @param end the final index of any selected region
+		 * @return true if the text and region are the ones converted
+		*/
+		public boolean isFor(String text, int start, int end) {
+			return (!runOptions.getSelectedRegion() || start == x && end == y)
+				&& (text == s || text.equals(s));
+		}
+		
+		/** Gets the converted text once the worker has finished.
+		 * @return the conversion
+		*/
+		public Conversion getResult() { return result; }
+		
+		/** Converts the text.
+		 * @return the conversion; null if cancelled
+		*/
+		protected Conversion doInBackground() {
+			Conversion result = convertWhole(s, x, y, runOptions, allKeys, 
+				targetKey);
+			if (result != null) return result;
+			
+			// lines are converted whole, so the region extends to the end
+			// of the line in which it stops
+			int n = x;
+			int end = y;
+			if (!runOptions.getSelectedRegion()) {
+				n = 0;
+				end = s.length();
+			}
+			int regionEnd = n;
+			if (n < end) {
+				int lineBreak = s.indexOf('\n', end - 1);
+				regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+			}
+			
+			// reuses the lines remembered from earlier runs, a block at a time
+			// so as to show progress and heed cancelling
+			StringBuilder out = new StringBuilder(s.length() + 16);
+			out.append(s, 0, n);
+			long linesChanged = 0;
+			long linesRead = 0;
+			try {
+				while (n < regionEnd) {
+					if (isCancelled()) return null;
+					int blockEnd = s.indexOf('\n', 
+						Math.min(n + PROGRESS_BLOCK_SIZE, regionEnd) - 1);
+					blockEnd = (blockEnd == -1 || blockEnd >= regionEnd) 
+						? regionEnd : blockEnd + 1;
+					SongSheetOutcome outcome = 
+						converter.convert(s, n, blockEnd, out);
+					linesRead += outcome.getLinesRead();
+					linesChanged += outcome.getLinesChanged();
+					publish(Long.valueOf(linesRead));
+					n = blockEnd;
+				}
+			} finally {
+				converter.prune();
+			}
+			out.append(s, regionEnd, s.length());
+			return new Conversion(out.toString(), 
+				linesMessage(linesChanged, runOptions));
+		}
+		
+		/** Shows the number of lines converted so far.
+		 * @param chunks the numbers of lines read, the latest last
+		*/
+		protected void process(java.util.List<Long> chunks) {
+			if (isCancelled()) return;
+			displayResults(new String[] { 
+				chunks.get(chunks.size() - 1) + " lines converted..." }, 1);
+		}
+		
+		/** Applies the conversion, unless cancelled, by running the plug-in
+		 * again.
+		*/
+		protected void done() {
+			endConversion();
+			if (isCancelled()) {
+				displayResults(new String[] { "Cancelled" }, 1);
+				return;
+			}
+			try {
+				result = get();
+			} catch (InterruptedException e) {
+				// done() only runs once the result is ready
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				displayResults(new String[] { 
+					"Conversion failed: " + e.getCause() }, 1);
+				return;
+			}
+			finished = this;
+			runPlugIn();
 		}
-		return array;
 	}
-
 	
 	/**Storage class for list markers.
 	 * Contains the marker as well as a flag for whether the marker
@@ -574,8 +562,6 @@ public class Plug extends PlugInWindow {
 */
 class SongSheetDialog extends JPanel {//JFrame {
 
-	private static final String DEFAULT_CHORD_INDICATORS = "#,b,/,sus,aug,dim,m";
-	
 	JLabel tips = null; // offers tips on using the plug-in 
 	JLabel chordIndicatorsListLbl = null; // label for the search field
 	JTextField chordIndicatorsListFld = null; // search expression input
@@ -587,6 +573,11 @@ class SongSheetDialog extends JPanel {//JFrame {
 	JLabel stepsLbl = stepsLbl = null;
 	JSpinner stepsSpinner = null;
 	JCheckBox halfStepChk = null;
+	JCheckBox allKeysChk = null; // transpose into every key
+	JCheckBox alignChordsChk = null; // keep chords above the same lyrics
+	JCheckBox strictChordsChk = null; // recognize chords by their grammar
+	JLabel targetKeyLbl = null;
+	JComboBox<String> targetKeyCombo = null; // key to transpose into
 	JRadioButton transposeRad = null; // reply boundaries
 	JRadioButton chordRemoverRad = null;
 	JCheckBox selectedRegionChk = null; // only work on selected region
@@ -720,7 +711,7 @@ class SongSheetDialog extends JPanel {//JFrame {
 			100,
 			0,
 			this);
-		chordIndicatorsListFld = new JTextField(DEFAULT_CHORD_INDICATORS, 20); //"#,\t, ,\240,/,sus,aug,dim,m"
+		chordIndicatorsListFld = new JTextField(SongSheetOptions.DEFAULT_CHORD_INDICATORS, 20); //"#,\t, ,\240,/,sus,aug,dim,m"
 		LibTTx.addGridBagComponent(
 			chordIndicatorsListFld,
 			constraints,
@@ -793,6 +784,95 @@ class SongSheetDialog extends JPanel {//JFrame {
 			this);//contentPane);
 		
 		
+		// Option to transpose into every key at once
+		allKeysChk = new JCheckBox("All 12 keys");
+		msg = 
+			"<html>Transposes the song into every key, one after another,"
+			+ "<br>ignoring the number of steps.</html>";
+		allKeysChk.setToolTipText(msg);
+		LibTTx.addGridBagComponent(
+			allKeysChk,
+			constraints,
+			2,
+			5,
+			1,
+			1,
+			100,
+			0,
+			this);//contentPane);
+		
+		// Option to keep the chords aligned with the lyrics
+		alignChordsChk = new JCheckBox("Keep chords aligned");
+		msg = 
+			"<html>Adds or removes spaces after chords whose names grow"
+			+ "<br>or shrink, such as \"E\" to \"F#\", so that each chord"
+			+ "<br>stays above the same lyrics.</html>";
+		alignChordsChk.setToolTipText(msg);
+		LibTTx.addGridBagComponent(
+			alignChordsChk,
+			constraints,
+			0,
+			6,
+			2,
+			1,
+			100,
+			0,
+			this);//contentPane);
+		
+		// Option to accept only whole chords, such as "Am7/G"
+		strictChordsChk = new JCheckBox("Strict chords");
+		msg = 
+			"<html>Treats a word as a chord only if the whole word is one,"
+			+ "<br>such as \"Am7/G\" or \"G7(b9)\", so that lyrics such as"
+			+ "<br>\"Amazing\" are left alone.  Chord suffixes are then"
+			+ "<br>accepted as chord qualities.</html>";
+		strictChordsChk.setToolTipText(msg);
+		LibTTx.addGridBagComponent(
+			strictChordsChk,
+			constraints,
+			2,
+			6,
+			1,
+			1,
+			100,
+			0,
+			this);//contentPane);
+		
+		// Option to transpose into a chosen key, whatever the song's key
+		targetKeyLbl = new JLabel("To key:");
+		msg = 
+			"<html>Finds the song's key from its chords and transposes it"
+			+ "<br>into this key, ignoring the number of steps.  Minor songs"
+			+ "<br>go to the relative minor of a major key, and vice versa.</html>";
+		targetKeyLbl.setToolTipText(msg);
+		LibTTx.addGridBagComponent(
+			targetKeyLbl,
+			constraints,
+			0,
+			7,
+			1,
+			1,
+			100,
+			0,
+			this);//contentPane);
+		targetKeyCombo = new JComboBox<String>();
+		targetKeyCombo.addItem("");
+		String[] keyNames = SongSheetKey.getKeyNames();
+		for (int i = 0; i < keyNames.length; i++) {
+			targetKeyCombo.addItem(keyNames[i]);
+		}
+		targetKeyCombo.setToolTipText(msg);
+		LibTTx.addGridBagComponent(
+			targetKeyCombo,
+			constraints,
+			1,
+			7,
+			1,
+			1,
+			100,
+			0,
+			this);//contentPane);
+		
 		// Option to work only within highlighted section
 		selectedRegionChk = new JCheckBox("Selected area only");
 		LibTTx.addGridBagComponent(
@@ -815,7 +895,7 @@ class SongSheetDialog extends JPanel {//JFrame {
 			resultsTitleLbl,
 			constraints,
 			0,
-			6,
+			8,
 			1,
 			1,
 			100,
@@ -827,7 +907,7 @@ class SongSheetDialog extends JPanel {//JFrame {
 			resultsLbl,
 			constraints,
 			1,
-			6,
+			8,
 			2,
 			1,
 			100,
@@ -840,7 +920,7 @@ class SongSheetDialog extends JPanel {//JFrame {
 			removerBtn,
 			constraints,
 			0,
-			7,
+			9,
 			3,
 			1,
 			100,
@@ -855,6 +935,10 @@ class SongSheetDialog extends JPanel {//JFrame {
 		stepsLbl.setEnabled(b);
 		stepsSpinner.setEnabled(b);
 		halfStepChk.setEnabled(b);
+		allKeysChk.setEnabled(b);
+		alignChordsChk.setEnabled(b);
+		targetKeyLbl.setEnabled(b);
+		targetKeyCombo.setEnabled(b);
 	}
 	
 	/**Gets the chord indicators.
@@ -876,6 +960,30 @@ class SongSheetDialog extends JPanel {//JFrame {
 	*/
 	public boolean getHalfStep() { return halfStepChk.isSelected(); }
 	
+	/** Gets the chord alignment flag.
+	 * @return true if transposed chords should stay in their columns
+	*/
+	public boolean getAlignChords() { return alignChordsChk.isSelected(); }
+	
+	/** Gets the strict chords flag.
+	 * @return true if chords should be recognized by their grammar
+	*/
+	public boolean getStrictChords() { return strictChordsChk.isSelected(); }
+	
+	/** Gets the all keys flag.
+	 * @return true if the song should be transposed into every key
+	*/
+	public boolean getAllKeys() { return allKeysChk.isSelected(); }
+	
+	/** Gets the key into which to transpose the song.
+	 * @return the chosen key; null if none has been chosen
+	*/
+	public SongSheetKey getTargetKey() {
+		String name = (String) targetKeyCombo.getSelectedItem();
+		return (name == null || name.equals("")) ? null 
+			: SongSheetKey.parse(name);
+	}
+	
 	/**Gets the email markers flag.
 	 * @return the flag to add reply email boundary markers
 	*/
@@ -886,6 +994,21 @@ class SongSheetDialog extends JPanel {//JFrame {
 	*/
 	public boolean getSelectedRegion() { return selectedRegionChk.isSelected(); }
 	
+	/** Gets all of the options at once.
+	 * @return the options currently chosen in the dialog
+	*/
+	public SongSheetOptions getOptions() {
+		return new SongSheetOptions(
+			getChordIndicatorsList(),
+			getThreshold(),
+			getTranspose(),
+			getSteps(),
+			getHalfStep(),
+			getSelectedRegion(),
+			getAlignChords(),
+			getStrictChords());
+	}
+	
 	/** Sets the results label.
 	 * @param s what to set the results label
 	*/
@@ -0,0 +1,607 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Converts whole directories of song sheets from the command line.
+ * Takes the same options as the Song Sheet Maker's dialog window and 
+ * needs no graphical environment, so that it can run on headless 
+ * servers.  Every file in the input directory tree is converted into
+ * the same relative location in the output directory, with a bounded
+ * number of files in progress at once.  Virtual threads carry the work
+ * where the platform offers them, and a fixed pool of threads otherwise.
+*/
+public class SongSheetBatch {
+	
+	// smallest file worth memory-mapping rather than streaming
+	private static final long MIN_MAPPED_SIZE = 1 << 20;
+	private static final String USAGE = 
+		"Usage: java com.textflex.texttrix.SongSheetBatch [options] "
+			+ "<input dir> <output dir>\n"
+			+ "Options:\n"
+			+ "  -suffixes <list>   comma-delimited chord suffixes (default \""
+			+ SongSheetOptions.DEFAULT_CHORD_INDICATORS + "\")\n"
+			+ "  -threshold <n>     max chords to check per line, 0 for all "
+			+ "(default 2)\n"
+			+ "  -strict            accept only whole chords, such as \"Am7/G\", "
+			+ "by their grammar\n"
+			+ "  -steps <n>         full steps to transpose (default 1)\n"
+			+ "  -halfstep          transpose an extra half-step up\n"
+			+ "  -align             keep transposed chords in their columns\n"
+			+ "  -key <name>        transpose each song from its own key into "
+			+ "this key,\n"
+			+ "                     such as \"G\" or \"Em\", ignoring the steps\n"
+			+ "  -remove            remove chords instead of transposing\n"
+			+ "  -chordpro          read the files as ChordPro\n"
+			+ "  -to <layout>       write the files as \"chordpro\" or with the "
+			+ "chords\n"
+			+ "                     above the lyrics, \"abovelines\" "
+			+ "(default: as read)\n"
+			+ "  -threads <n>       max files to convert at once "
+			+ "(default: num of processors)\n"
+			+ "  -charset <name>    character set of the files (default UTF-8)\n"
+			+ "  -metrics           report the counts and timings of every "
+			+ "phase\n"
+			+ "  -pipeline <r,c,w>  read, convert, and write in a pipeline with "
+			+ "r, c, and w\n"
+			+ "                     workers, reporting each stage; can't be "
+			+ "combined\n"
+			+ "                     with ChordPro or keys\n"
+			+ "  -queue <n>         most files waiting for each pipeline stage "
+			+ "(default 64)";
+	
+	private SongSheetEngine engine = null; // shared by all of the files
+	// shared by the large files that can be mapped
+	private SongSheetMappedConverter mappedConverter = null;
+	// converts files to or from ChordPro
+	private ChordProConverter chordProConverter = null;
+	private boolean readChordPro = false; // flags ChordPro input
+	private boolean writeChordPro = false; // flags ChordPro output
+	private SongSheetKey targetKey = null; // key to transpose into, if any
+	private Charset charset = null; // character set of the files
+	private int threads = 1; // max num of files to convert at once
+	
+	/* Results */
+	private AtomicLong filesConverted = new AtomicLong(); // num of files done
+	private AtomicLong linesRead = new AtomicLong(); // num of lines read
+	private AtomicLong filesFailed = new AtomicLong(); // num of files failed
+	
+	/** Constructs a batch converter.
+	 * @param options the conversion options
+	 * @param charset the character set of the files
+	 * @param threads the maximum number of files to convert at once
+	*/
+	public SongSheetBatch(SongSheetOptions options, Charset charset, 
+		int threads) {
+		this(options, charset, threads, null);
+	}
+	
+	/** Constructs a batch converter that reports the metrics of each file.
+	 * Files read as or written to ChordPro, or transposed into a key, 
+	 * aren't reported.
+	 * @param options the conversion options
+	 * @param charset the character set of the files
+	 * @param threads the maximum number of files to convert at once
+	 * @param metricsListener the listener to receive the metrics, from 
+	 * any of the converting threads; null to skip the metrics
+	*/
+	public SongSheetBatch(SongSheetOptions options, Charset charset, 
+		int threads, SongSheetMetricsListener metricsListener) {
+		engine = new SongSheetEngine(options, metricsListener);
+		mappedConverter = 
+			new SongSheetMappedConverter(options, metricsListener);
+		chordProConverter = new ChordProConverter(options);
+		this.charset = charset;
+		this.threads = threads;
+	}
+	
+	/** Runs the batch converter from the command line.
+	 * @param args the options, followed by the input and output directories
+	*/
+	public static void main(String[] args) {
+		String chordIndicatorsList = SongSheetOptions.DEFAULT_CHORD_INDICATORS;
+		int threshold = 2;
+		int steps = 1;
+		boolean halfStep = false;
+		boolean alignChords = false;
+		boolean strictChords = false;
+		SongSheetKey targetKey = null;
+		boolean readChordPro = false;
+		String layout = null;
+		boolean transpose = true;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Charset charset = null;
+		String charsetName = "UTF-8";
+		boolean reportMetrics = false;
+		int[] pipelineWorkers = null;
+		int queueCapacity = 64;
+		File inDir = null;
+		File outDir = null;
+		
+		// parses the options
+		try {
+			int n = 0;
+			for (; n < args.length && args[n].startsWith("-"); n++) {
+				String arg = args[n];
+				if (arg.equals("-suffixes")) {
+					chordIndicatorsList = args[++n];
+				} else if (arg.equals("-threshold")) {
+					threshold = Integer.parseInt(args[++n]);
+				} else if (arg.equals("-strict")) {
+					strictChords = true;
+				} else if (arg.equals("-steps")) {
+					steps = Integer.parseInt(args[++n]);
+				} else if (arg.equals("-halfstep")) {
+					halfStep = true;
+				} else if (arg.equals("-align")) {
+					alignChords = true;
+				} else if (arg.equals("-key")) {
+					targetKey = SongSheetKey.parse(args[++n]);
+				} else if (arg.equals("-remove")) {
+					transpose = false;
+				} else if (arg.equals("-chordpro")) {
+					readChordPro = true;
+				} else if (arg.equals("-to")) {
+					layout = args[++n];
+					if (!layout.equals("chordpro") && !layout.equals("abovelines")) {
+						throw new IllegalArgumentException("Unknown layout: " + layout);
+					}
+				} else if (arg.equals("-threads")) {
+					threads = Integer.parseInt(args[++n]);
+				} else if (arg.equals("-charset")) {
+					charsetName = args[++n];
+				} else if (arg.equals("-metrics")) {
+					reportMetrics = true;
+				} else if (arg.equals("-pipeline")) {
+					String[] counts = args[++n].split(",");
+					if (counts.length != SongSheetPipeline.NUM_STAGES) {
+						throw new IllegalArgumentException(
+							"Expected workers for each stage, such as 2,4,2");
+					}
+					pipelineWorkers = new int[counts.length];
+					for (int i = 0; i < counts.length; i++) {
+						pipelineWorkers[i] = Integer.parseInt(counts[i].trim());
+					}
+				} else if (arg.equals("-queue")) {
+					queueCapacity = Integer.parseInt(args[++n]);
+				} else {
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+			if (args.length - n != 2) {
+				throw new IllegalArgumentException(
+					"Expected an input and an output directory");
+			}
+			inDir = new File(args[n]);
+			outDir = new File(args[n + 1]);
+			if (!inDir.isDirectory()) {
+				throw new IllegalArgumentException("Not a directory: " + inDir);
+			}
+			if (threads < 1) {
+				throw new IllegalArgumentException("Threads must be at least 1");
+			}
+			if (pipelineWorkers != null 
+				&& (readChordPro || layout != null || targetKey != null)) {
+				throw new IllegalArgumentException(
+					"-pipeline can't be combined with ChordPro or keys");
+			}
+			try {
+				charset = Charset.forName(charsetName);
+			} catch (IllegalArgumentException e) {
+				// covers both illegal and unsupported names
+				throw new IllegalArgumentException(
+					"Unsupported charset: " + charsetName);
+			}
+		} catch (RuntimeException e) {
+			// covers missing option values and malformed numbers as well
+			System.err.println(e.getMessage() == null ? e.toString() : e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		SongSheetOptions options = new SongSheetOptions(
+			chordIndicatorsList,
+			threshold,
+			transpose,
+			steps,
+			halfStep,
+			false,
+			alignChords,
+			strictChords);
+		// totals the metrics of the files as each one finishes
+		final SongSheetMetrics totals = 
+			reportMetrics ? SongSheetMetrics.createTotals() : null;
+		SongSheetMetricsListener metricsListener = null;
+		if (reportMetrics) {
+			metricsListener = new SongSheetMetricsListener() {
+				public void conversionFinished(SongSheetMetrics metrics) {
+					synchronized (totals) {
+						totals.add(metrics);
+					}
+				}
+			};
+		}
+		SongSheetBatch batch = null;
+		SongSheetPipeline pipeline = null;
+		if (pipelineWorkers == null) {
+			batch = new SongSheetBatch(options, charset, threads, metricsListener);
+			batch.setLayouts(readChordPro, 
+				(layout == null) ? readChordPro : layout.equals("chordpro"));
+			batch.setTargetKey(targetKey);
+		} else {
+			try {
+				pipeline = new SongSheetPipeline(
+					new SongSheetEngine(options, metricsListener),
+					charset, pipelineWorkers[0], 
+					pipelineWorkers[1], pipelineWorkers[2], queueCapacity);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			if (batch != null) {
+				batch.convertTree(inDir, outDir);
+			} else {
+				pipeline.convertTree(inDir, outDir);
+			}
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted");
+			System.exit(1);
+		}
+		double secs = Math.max(System.nanoTime() - start, 1) / 1e9;
+		
+		long files = 
+			(batch != null) ? batch.getFilesConverted() : pipeline.getFilesConverted();
+		long lines = (batch != null) ? batch.getLinesRead() : pipeline.getLinesRead();
+		long failed = 
+			(batch != null) ? batch.getFilesFailed() : pipeline.getFilesFailed();
+		System.out.println("Converted " + files + " files (" + lines 
+			+ " lines) in " + Math.round(secs * 1000) / 1000.0 + " s: "
+			+ Math.round(files / secs) + " files/s, " 
+			+ Math.round(lines / secs) + " lines/s");
+		if (pipeline != null) System.out.print(pipeline.getReport());
+		if (totals != null) {
+			synchronized (totals) {
+				System.out.println(totals);
+			}
+		}
+		if (failed > 0) {
+			System.err.println(failed + " files failed");
+			System.exit(1);
+		}
+	}
+	
+	/** Sets the layouts of the files read and written.
+	 * Files are read and written with the chords above the lyrics 
+	 * unless set otherwise.
+	 * @param readChordPro true to read the files as ChordPro
+	 * @param writeChordPro true to write the files as ChordPro
+	*/
+	public void setLayouts(boolean readChordPro, boolean writeChordPro) {
+		this.readChordPro = readChordPro;
+		this.writeChordPro = writeChordPro;
+	}
+	
+	/** Sets the key into which to transpose each song.
+	 * Each song's own key is estimated from its chords, so the songs are
+	 * read whole rather than streamed.  Applies only to songs with the 
+	 * chords above the lyrics, and only when transposing.
+	 * @param targetKey the key to reach; null to transpose by the number
+	 * of steps in the options
+	*/
+	public void setTargetKey(SongSheetKey targetKey) {
+		this.targetKey = targetKey;
+	}
+	
+	/** Converts every file in a directory tree.
+	 * Blocks until all of the files have been converted.  Files that 
+	 * fail to convert are reported to the standard error stream and 
+	 * counted, without stopping the rest of the batch.  An output 
+	 * directory inside the input tree is skipped rather than converted 
+	 * into itself.
+	 * @param inDir the root of the tree to convert
+	 * @param outDir the directory in which to mirror the converted tree
+	 * @throws InterruptedException if interrupted while waiting for files
+	 * to finish converting
+	*/
+	public void convertTree(File inDir, File outDir) 
+		throws InterruptedException {
+		ExecutorService executor = createExecutor(threads);
+		// limits the files in progress, whatever the kind of executor
+		Semaphore permits = new Semaphore(threads);
+		try {
+			submitTree(inDir, outDir, toCanonical(outDir), executor, permits);
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/** Walks a directory, submitting each of its files for conversion
+	 * as soon as a permit is available.
+	 * @param dir the directory to walk
+	 * @param outDir the corresponding output directory
+	 * @param outRoot the canonical root of the output tree, to skip
+	 * @param executor the executor to convert the files
+	 * @param permits permits for files in progress
+	 * @throws InterruptedException if interrupted while waiting for a permit
+	*/
+	private void submitTree(File dir, File outDir, File outRoot, 
+		ExecutorService executor, final Semaphore permits) 
+		throws InterruptedException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			System.err.println(dir + ": unable to list directory");
+			filesFailed.incrementAndGet();
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			final File in = files[i];
+			final File out = new File(outDir, in.getName());
+			if (in.isDirectory()) {
+				if (!toCanonical(in).equals(outRoot)) {
+					submitTree(in, out, outRoot, executor, permits);
+				}
+			} else if (in.isFile()) {
+				permits.acquire();
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							convertFile(in, out);
+						} catch (IOException e) {
+							System.err.println(in + ": " + e.getMessage());
+							filesFailed.incrementAndGet();
+						} catch (RuntimeException e) {
+							System.err.println(in + ": " + e);
+							filesFailed.incrementAndGet();
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	/** Resolves a file to its canonical form, to compare it with others.
+	 * @param file the file to resolve
+	 * @return the canonical file, or the absolute file if the file 
+	 * system can't resolve it
+	*/
+	static File toCanonical(File file) {
+		try {
+			return file.getCanonicalFile();
+		} catch (IOException e) {
+			return file.getAbsoluteFile();
+		}
+	}
+	
+	/** Converts a single file.
+	 * The converted text is written to a temporary file beside the 
+	 * output file, which replaces the output file only once the whole
+	 * file has been converted, so that a failed file leaves no partial
+	 * output behind.
+	 * @param in the file to convert
+	 * @param out the file to which to write the converted text
+	 * @throws IOException if either file fails
+	*/
+	public void convertFile(File in, File out) throws IOException {
+		File part = createPartFile(out);
+		boolean moved = false;
+		try {
+			SongSheetOutcome outcome = convertInto(in, part);
+			moveIntoPlace(part, out);
+			moved = true;
+			filesConverted.incrementAndGet();
+			linesRead.addAndGet(outcome.getLinesRead());
+		} finally {
+			if (!moved) part.delete();
+		}
+	}
+	
+	/** Names a temporary file beside an output file, creating the 
+	 * output file's directory if necessary.
+	 * The file itself is left to be created by its writer, with the 
+	 * usual permissions for new files.
+	 * @param out the output file
+	 * @return the temporary file
+	 * @throws IOException if the directory can't be created
+	*/
+	static File createPartFile(File out) throws IOException {
+		File parent = out.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		return new File(parent, "." + out.getName() + ".part");
+	}
+	
+	/** Moves a finished temporary file into place, replacing the output
+	 * file at once where the file system allows it.
+	 * @param part the temporary file
+	 * @param out the output file
+	 * @throws IOException if the file can't be moved
+	*/
+	static void moveIntoPlace(File part, File out) throws IOException {
+		try {
+			Files.move(part.toPath(), out.toPath(), 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part.toPath(), out.toPath(), 
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/** Converts a single file into a given output file.
+	 * Files to or from ChordPro go through the ChordPro converter.  
+	 * Otherwise, large ASCII or UTF-8 files are memory-mapped, while all 
+	 * others are streamed through the shared engine.
+	 * @param in the file to convert
+	 * @param out the file to which to write the converted text
+	 * @return the line counts
+	 * @throws IOException if either file fails
+	*/
+	private SongSheetOutcome convertInto(File in, File out) throws IOException {
+		SongSheetOutcome outcome = null;
+		if (readChordPro || writeChordPro) {
+			// reports malformed input, as the engine's channel readers do
+			Reader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(in), charset.newDecoder()));
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(out), charset.newEncoder()));
+				try {
+					if (!readChordPro) {
+						outcome = chordProConverter.toChordPro(reader, writer);
+					} else if (!writeChordPro) {
+						outcome = chordProConverter.toAboveLines(reader, writer);
+					} else {
+						outcome = chordProConverter.convert(reader, writer);
+					}
+				} finally {
+					writer.close();
+				}
+			} finally {
+				reader.close();
+			}
+			return outcome;
+		}
+		if (targetKey != null && engine.getOptions().getTranspose()) {
+			return convertToKey(in, out);
+		}
+		if (in.length() >= MIN_MAPPED_SIZE 
+			&& SongSheetMappedConverter.isMappable(charset)) {
+			return mappedConverter.convert(in, out, charset);
+		}
+		FileInputStream inStream = new FileInputStream(in);
+		try {
+			FileOutputStream outStream = new FileOutputStream(out);
+			try {
+				outcome = engine.convert(inStream.getChannel(), 
+					outStream.getChannel(), charset);
+			} finally {
+				outStream.close();
+			}
+		} finally {
+			inStream.close();
+		}
+		return outcome;
+	}
+	
+	/** Transposes a file from its estimated key into the target key.
+	 * Files without any chords to estimate the key from are copied as
+	 * they are.
+	 * @param in the file to convert
+	 * @param out the file to which to write the converted text
+	 * @return the outcome, without the text
+	 * @throws IOException if either file fails
+	*/
+	private SongSheetOutcome convertToKey(File in, File out) 
+		throws IOException {
+		StringBuilder text = new StringBuilder((int) Math.min(in.length(), 
+			Integer.MAX_VALUE));
+		// reports malformed input, as the engine's channel readers do
+		Reader reader = new InputStreamReader(new FileInputStream(in), 
+			charset.newDecoder());
+		try {
+			char[] buf = new char[8192];
+			for (int len; (len = reader.read(buf)) != -1;) {
+				text.append(buf, 0, len);
+			}
+		} finally {
+			reader.close();
+		}
+		String s = text.toString();
+		SongSheetModel model = engine.parse(s, 0, 0);
+		SongSheetKey key = model.estimateKey();
+		SongSheetOutcome outcome = (key == null) 
+			? new SongSheetOutcome(s, model.getLineCount(), 0)
+			: model.transpose(key.getShiftTo(targetKey), 
+				engine.getOptions().getAlignChords(), targetKey);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(out), 
+			charset.newEncoder());
+		try {
+			writer.write(outcome.getText());
+		} finally {
+			writer.close();
+		}
+		return new SongSheetOutcome(null, outcome.getLinesRead(), 
+			outcome.getLinesChanged());
+	}
+	
+	/** Creates an executor for converting files.
+	 * Prefers a virtual thread for each file, available from Java 21,
+	 * and otherwise falls back to a fixed pool of platform threads.
+	 * @param threads the number of platform threads for the fallback pool
+	 * @return the executor
+	*/
+	private static ExecutorService createExecutor(int threads) {
+		try {
+			Method factory = 
+				Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+	
+	/** Gets the number of files converted so far.
+	 * @return the number of files
+	*/
+	public long getFilesConverted() { return filesConverted.get(); }
+	
+	/** Gets the number of lines read so far.
+	 * @return the number of lines
+	*/
+	public long getLinesRead() { return linesRead.get(); }
+	
+	/** Gets the number of files that failed to convert so far.
+	 * @return the number of files
+	*/
+	public long getFilesFailed() { return filesFailed.get(); }
+
+}
@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.nio.*;
+
+/** Scans bytes eight at a time for line breaks and blankspace.
+ * Reads each word of eight bytes as a single long and finds the bytes
+ * of interest with bitwise arithmetic, so that long lines of lyrics or 
+ * runs of spaces cost a few operations per word rather than per byte.
+ * Any bytes left over at the end of a range are scanned one at a time.
+ * Works on buffers of either byte order without changing them, and 
+ * treats bytes as ASCII or Latin-1, matching the view of ASCII lines 
+ * used by {@link SongSheetMappedConverter}.
+*/
+public class SongSheetByteScanner {
+	
+	/* Constants */
+	private static final long ONES = 0x0101010101010101L; // 1 in each byte
+	// all but the high bit of each byte
+	private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+	private static final long HIGH_BITS = ~LOW_BITS; // high bit of each byte
+	private static final long SPACES = ' ' * ONES;
+	private static final long TABS = '\t' * ONES;
+	private static final long NO_BREAK_SPACES = 0xa0L * ONES;
+	
+	/** Scanners are never instantiated.
+	*/
+	private SongSheetByteScanner() {}
+	
+	/** Finds the first occurrence of a byte.
+	 * @param buf the bytes to search
+	 * @param from the index at which to start searching
+	 * @param to the index at which to stop searching
+	 * @param b the byte to find
+	 * @return the index of the byte; -1 if not found
+	*/
+	public static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+		long pattern = (b & 0xffL) * ONES;
+		boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long found = zeroBytes(buf.getLong(i) ^ pattern);
+			if (found != 0) return i + firstByte(found, bigEndian);
+		}
+		for (; i < to; i++) {
+			if (buf.get(i) == b) return i;
+		}
+		return -1;
+	}
+	
+	/** Checks whether a range of bytes is all ASCII.
+	 * @param buf the bytes to check
+	 * @param from the starting index of the range
+	 * @param to the ending index of the range, noninclusive
+	 * @return true if none of the bytes has its high bit set
+	*/
+	public static boolean isAscii(ByteBuffer buf, int from, int to) {
+		long bits = 0; // combined words, with high bits set if not ASCII
+		int i = from;
+		for (; i + 8 <= to; i += 8) bits |= buf.getLong(i);
+		for (; i < to; i++) bits |= buf.get(i);
+		return (bits & HIGH_BITS) == 0;
+	}
+	
+	/** Skips past any blankspace, as 
+	 * {@link ChordClassifier#skipBlankspace(CharSequence, int, int)} does.
+	 * @param buf the bytes to search
+	 * @param pos the position at which to start searching
+	 * @param end the index at which to stop searching
+	 * @return the position of the first non-blankspace at or after 
+	 * <code>pos</code>; <code>end</code> if there is none
+	*/
+	public static int skipBlankspace(ByteBuffer buf, int pos, int end) {
+		boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+		for (; pos + 8 <= end; pos += 8) {
+			long found = ~blankspaceBytes(buf.getLong(pos)) & HIGH_BITS;
+			if (found != 0) return pos + firstByte(found, bigEndian);
+		}
+		while (pos < end && isBlankspace(buf.get(pos))) pos++;
+		return pos;
+	}
+	
+	/** Skips past any non-blankspace, as
+	 * {@link ChordClassifier#skipNonBlankspace(CharSequence, int, int)} 
+	 * does.
+	 * @param buf the bytes to search
+	 * @param pos the position at which to start searching
+	 * @param end the index at which to stop searching
+	 * @return the position of the first blankspace at or after 
+	 * <code>pos</code>; <code>end</code> if there is none
+	*/
+	public static int skipNonBlankspace(ByteBuffer buf, int pos, int end) {
+		boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+		for (; pos + 8 <= end; pos += 8) {
+			long found = blankspaceBytes(buf.getLong(pos));
+			if (found != 0) return pos + firstByte(found, bigEndian);
+		}
+		while (pos < end && !isBlankspace(buf.get(pos))) pos++;
+		return pos;
+	}
+	
+	/** Checks if a byte is a space, tab, or Latin-1 non-breaking space.
+	 * @param b the byte to check
+	 * @return true if the byte is blankspace
+	*/
+	private static boolean isBlankspace(byte b) {
+		return ChordClassifier.isBlankspace((char) (b & 0xff));
+	}
+	
+	/** Marks the blankspace bytes of a word.
+	 * @param word the bytes
+	 * @return the high bit of each blankspace byte, and no other bits
+	*/
+	private static long blankspaceBytes(long word) {
+		return zeroBytes(word ^ SPACES) | zeroBytes(word ^ TABS) 
+			| zeroBytes(word ^ NO_BREAK_SPACES);
+	}
+	
+	/** Marks the zero bytes of a word.
+	 * Adding 0x7f to the low bits of a byte carries into its high bit 
+	 * unless they are all zero, so a byte is zero only if neither the sum
+	 * nor the byte itself has its high bit set.  No carry crosses from one
+	 * byte to the next, so each byte is marked exactly.
+	 * @param word the bytes
+	 * @return the high bit of each zero byte, and no other bits
+	*/
+	private static long zeroBytes(long word) {
+		long sum = (word & LOW_BITS) + LOW_BITS;
+		return ~(sum | word | LOW_BITS);
+	}
+	
+	/** Finds the first marked byte of a word in memory order.
+	 * @param marks the high bit of each marked byte
+	 * @param bigEndian true if the word was read in big-endian order, 
+	 * with the first byte in the highest bits
+	 * @return the index of the first marked byte, from 0 to 7
+	*/
+	private static int firstByte(long marks, boolean bigEndian) {
+		return (bigEndian ? Long.numberOfLeadingZeros(marks) 
+			: Long.numberOfTrailingZeros(marks)) >>> 3;
+	}
+
+}
@@ -0,0 +1,242 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.security.*;
+import java.util.*;
+
+/** Remembers the most recently converted song sheets.
+ * Each conversion is keyed by a digest of the text along with the 
+ * normalized options, so that a song already converted into a given key
+ * is returned at once, no matter how the equivalent options were spelled.
+ * The least recently used songs are evicted once the cache holds more than
+ * a given number of songs or more than a given weight of text, counted
+ * in chars of both the original and converted text.  Hits, misses, and
+ * evictions are counted to help size the cache.  The cache may be shared
+ * by any number of threads.
+*/
+public class SongSheetCache {
+	
+	/* Constants */
+	// num of chars digested at a time
+	private static final int DIGEST_BUFFER_SIZE = 4096;
+	
+	private final int maxSongs; // max num of songs to hold
+	private final long maxWeight; // max num of chars to hold
+	// songs by key, from least to most recently used
+	private final LinkedHashMap<Key, SongSheetOutcome> songs = 
+		new LinkedHashMap<Key, SongSheetOutcome>(16, 0.75f, true);
+	private long weight = 0; // num of chars held
+	private long hits = 0; // num of songs found
+	private long misses = 0; // num of songs converted
+	private long evictions = 0; // num of songs evicted
+	
+	/** Constructs a cache.
+	 * @param maxSongs the maximum number of songs to hold
+	 * @param maxWeight the maximum number of chars to hold, counting both
+	 * the original and converted text
+	*/
+	public SongSheetCache(int maxSongs, long maxWeight) {
+		if (maxSongs < 0 || maxWeight < 0) {
+			throw new IllegalArgumentException("Negative cache limit");
+		}
+		this.maxSongs = maxSongs;
+		this.maxWeight = maxWeight;
+	}
+	
+	/** Runs the song sheet maker on the text, unless the same text has
+	 * recently been converted with equivalent options.
+	 * @param engine the engine with which to convert the text if necessary
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the converted text along with the line counts
+	 * @see SongSheetEngine#run(String, int, int)
+	*/
+	public SongSheetOutcome run(SongSheetEngine engine, String s, int x, int y) {
+		SongSheetOptions options = engine.getOptions().normalize();
+		// the region only matters when working on it alone
+		if (!options.getSelectedRegion()) {
+			x = 0;
+			y = 0;
+		}
+		Key key = new Key(digest(s), s.length(), options, x, y);
+		synchronized (this) {
+			SongSheetOutcome outcome = songs.get(key);
+			if (outcome != null) {
+				hits++;
+				return outcome;
+			}
+			misses++;
+		}
+		
+		// converts outside of the lock, so that other songs can be looked up
+		// meanwhile
+		SongSheetOutcome outcome = engine.run(s, x, y);
+		long songWeight = (long) s.length() + outcome.getText().length();
+		if (songWeight > maxWeight) return outcome; // would evict itself
+		synchronized (this) {
+			SongSheetOutcome old = songs.put(key, outcome);
+			if (old != null) weight -= s.length() + old.getText().length();
+			weight += songWeight;
+			// evicts the least recently used songs
+			Iterator<Map.Entry<Key, SongSheetOutcome>> it = 
+				songs.entrySet().iterator();
+			while (songs.size() > maxSongs || weight > maxWeight) {
+				Map.Entry<Key, SongSheetOutcome> eldest = it.next();
+				weight -= eldest.getKey().length + eldest.getValue().getText().length();
+				it.remove();
+				evictions++;
+			}
+		}
+		return outcome;
+	}
+	
+	/** Empties the cache, leaving the counts as they are.
+	*/
+	public synchronized void clear() {
+		songs.clear();
+		weight = 0;
+	}
+	
+	/** Gets the number of songs held.
+	 * @return the number of songs
+	*/
+	public synchronized int getSize() { return songs.size(); }
+	
+	/** Gets the weight of the songs held.
+	 * @return the number of chars held, counting both the original and
+	 * converted text
+	*/
+	public synchronized long getWeight() { return weight; }
+	
+	/** Gets the number of runs answered from the cache.
+	 * @return the number of hits
+	*/
+	public synchronized long getHits() { return hits; }
+	
+	/** Gets the number of runs that had to convert their text.
+	 * @return the number of misses
+	*/
+	public synchronized long getMisses() { return misses; }
+	
+	/** Gets the number of songs evicted to stay within the limits.
+	 * @return the number of evictions
+	*/
+	public synchronized long getEvictions() { return evictions; }
+	
+	/** Describes the cache's counts.
+	 * @return the counts as a string
+	*/
+	public synchronized String toString() {
+		return "SongSheetCache[songs=" + songs.size() + ",weight=" + weight
+			+ ",hits=" + hits + ",misses=" + misses 
+			+ ",evictions=" + evictions + "]";
+	}
+	
+	/** Digests the text.
+	 * @param s the text to digest
+	 * @return the SHA-256 digest of the text's chars
+	*/
+	private static byte[] digest(String s) {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform must support SHA-256
+			throw new RuntimeException(e);
+		}
+		// feeds each char as two bytes, without encoding the whole text
+		byte[] buf = new byte[DIGEST_BUFFER_SIZE * 2];
+		int len = s.length();
+		for (int start = 0; start < len; start += DIGEST_BUFFER_SIZE) {
+			int end = Math.min(start + DIGEST_BUFFER_SIZE, len);
+			int n = 0;
+			for (int i = start; i < end; i++) {
+				char c = s.charAt(i);
+				buf[n++] = (byte) (c >> 8);
+				buf[n++] = (byte) c;
+			}
+			digest.update(buf, 0, n);
+		}
+		return digest.digest();
+	}
+	
+	/** The key for a converted song.
+	*/
+	private static class Key {
+		private final byte[] digest; // digest of the text
+		private final int length; // length of the text
+		private final SongSheetOptions options; // normalized options
+		private final int x; // start of any selected region
+		private final int y; // end of any selected region
+		private final int hash; // hash code
+		
+		/** Constructs a key.
+		 * @param digest the digest of the text
+		 * @param length the length of the text
+		 * @param options the normalized options
+		 * @param x the start of any selected region
+		 * @param y the end of any selected region
+		*/
+		public Key(byte[] digest, int length, SongSheetOptions options, 
+			int x, int y) {
+			this.digest = digest;
+			this.length = length;
+			this.options = options;
+			this.x = x;
+			this.y = y;
+			int h = Arrays.hashCode(digest);
+			h = 31 * h + options.hashCode();
+			hash = 31 * (31 * h + x) + y;
+		}
+		
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return hash == other.hash
+				&& length == other.length
+				&& x == other.x
+				&& y == other.y
+				&& Arrays.equals(digest, other.digest)
+				&& options.equals(other.options);
+		}
+		
+		public int hashCode() { return hash; }
+	}
+
+}
@@ -0,0 +1,263 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import javax.swing.text.*;
+
+/** The changes that converting a song sheet makes to its text.
+ * Lists each edit as an offset into the original text, the length of
+ * the text it replaces, and the replacement, so that a host can patch
+ * only the chordal lines of a large document rather than replace all of
+ * it.  Edits are kept in the order of their offsets and never overlap,
+ * and edits that touch are merged into one.  The replacements share a 
+ * single buffer rather than a string each.
+*/
+public class SongSheetEdits {
+	
+	/* Constants */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private int count = 0; // num of edits
+	private int[] offsets = new int[16]; // start of each replaced range
+	private int[] oldLengths = new int[16]; // length of each replaced range
+	// end of each replacement within the shared buffer
+	private int[] replacementEnds = new int[16];
+	private StringBuilder replacements = new StringBuilder();
+	private long linesRead = 0; // num of lines read
+	private long linesChanged = 0; // num of lines kept or transposed
+	
+	/** Constructs an empty list of edits.
+	*/
+	public SongSheetEdits() {
+	}
+	
+	/** Adds an edit.
+	 * @param offset the start of the range to replace, in the original text
+	 * @param oldLength the length of the range to replace
+	 * @param replacement the text containing the replacement
+	 * @param start the starting index of the replacement
+	 * @param end the ending index of the replacement, noninclusive
+	 * @throws IllegalArgumentException if the edit starts before the end 
+	 * of the previous one
+	*/
+	public void add(int offset, int oldLength, CharSequence replacement, 
+		int start, int end) {
+		if (oldLength == 0 && start == end) return;
+		int last = count - 1;
+		int lastEnd = (count == 0) ? 0 : offsets[last] + oldLengths[last];
+		if (offset < lastEnd || oldLength < 0) {
+			throw new IllegalArgumentException("Edit at " + offset 
+				+ " overlaps or precedes the edit ending at " + lastEnd);
+		}
+		replacements.append(replacement, start, end);
+		// extends the previous edit if this one starts where it ends
+		if (count > 0 && offset == lastEnd) {
+			oldLengths[last] += oldLength;
+			replacementEnds[last] = replacements.length();
+			return;
+		}
+		if (count == offsets.length) {
+			int capacity = count * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			oldLengths = Arrays.copyOf(oldLengths, capacity);
+			replacementEnds = Arrays.copyOf(replacementEnds, capacity);
+		}
+		offsets[count] = offset;
+		oldLengths[count] = oldLength;
+		replacementEnds[count++] = replacements.length();
+	}
+	
+	/** Adds an edit.
+	 * @param offset the start of the range to replace, in the original text
+	 * @param oldLength the length of the range to replace
+	 * @param replacement the replacement
+	 * @throws IllegalArgumentException if the edit starts before the end 
+	 * of the previous one
+	*/
+	public void add(int offset, int oldLength, String replacement) {
+		add(offset, oldLength, replacement, 0, replacement.length());
+	}
+	
+	/** Sets the line counts of the conversion that made the edits.
+	 * @param read the number of lines read
+	 * @param changed the number of lines kept, whether or not transposed
+	*/
+	void setLineCounts(long read, long changed) {
+		linesRead = read;
+		linesChanged = changed;
+	}
+	
+	/** Gets the number of lines read, whether kept, transposed, or removed.
+	 * @return the number of lines read
+	*/
+	public long getLinesRead() { return linesRead; }
+	
+	/** Gets the number of lines kept, whether or not transposed.
+	 * @return the number of lines kept
+	*/
+	public long getLinesChanged() { return linesChanged; }
+	
+	/** Gets the number of edits.
+	 * @return the number of edits; 0 if the text is left as it is
+	*/
+	public int getEditCount() { return count; }
+	
+	/** Gets the offset of an edit.
+	 * @param i the index of the edit
+	 * @return the start of the replaced range, in the original text
+	*/
+	public int getOffset(int i) { return offsets[i]; }
+	
+	/** Gets the length of the text that an edit replaces.
+	 * @param i the index of the edit
+	 * @return the length of the replaced range
+	*/
+	public int getOldLength(int i) { return oldLengths[i]; }
+	
+	/** Gets the replacement of an edit.
+	 * @param i the index of the edit
+	 * @return the text that replaces the range
+	*/
+	public String getReplacement(int i) {
+		return replacements.substring(replacementStart(i), replacementEnds[i]);
+	}
+	
+	/** Gets the change in the length of the text once edited.
+	 * @return the total length of the replacements less that of the 
+	 * replaced ranges
+	*/
+	public int getLengthChange() {
+		int change = replacements.length();
+		for (int i = 0; i < count; i++) change -= oldLengths[i];
+		return change;
+	}
+	
+	/** Applies the edits to a text.
+	 * @param s the original text
+	 * @return the edited text
+	*/
+	public String applyTo(String s) {
+		StringBuilder out = new StringBuilder(s.length() + getLengthChange());
+		int n = 0; // end of the original text copied so far
+		for (int i = 0; i < count; i++) {
+			out.append(s, n, offsets[i]);
+			out.append(replacements, replacementStart(i), replacementEnds[i]);
+			n = offsets[i] + oldLengths[i];
+		}
+		out.append(s, n, s.length());
+		return out.toString();
+	}
+	
+	/** Applies the edits to a document holding the original text.
+	 * Works from the last edit back to the first, so that the offsets of
+	 * the edits still to be applied stay valid.  Each edit replaces its
+	 * range in a single step where the document allows it, keeping the 
+	 * attributes of the surrounding text.  Like any change to a document
+	 * shown on screen, should be called on the event dispatch thread.
+	 * @param doc the document
+	 * @throws BadLocationException if the document is shorter than the
+	 * original text
+	*/
+	public void applyTo(Document doc) throws BadLocationException {
+		for (int i = count - 1; i >= 0; i--) {
+			String replacement = getReplacement(i);
+			if (doc instanceof AbstractDocument) {
+				((AbstractDocument) doc).replace(offsets[i], oldLengths[i], 
+					replacement, null);
+			} else {
+				doc.remove(offsets[i], oldLengths[i]);
+				doc.insertString(offsets[i], replacement, null);
+			}
+		}
+	}
+	
+	/** Writes the edits in a compact form.
+	 * Gives the number of edits, followed by each edit's offset, replaced
+	 * length, and the length in bytes of its replacement in UTF-8, 
+	 * followed by the replacement itself.
+	 * @param out the destination
+	 * @throws IOException if the output fails
+	 * @see #readFrom(DataInput)
+	*/
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			out.writeInt(offsets[i]);
+			out.writeInt(oldLengths[i]);
+			byte[] bytes = getReplacement(i).getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	/** Reads edits written by {@link #writeTo(DataOutput)}.
+	 * The line counts aren't written and are read as 0.
+	 * @param in the source
+	 * @return the edits
+	 * @throws IOException if the input fails or holds edits out of order
+	*/
+	public static SongSheetEdits readFrom(DataInput in) throws IOException {
+		SongSheetEdits edits = new SongSheetEdits();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			int offset = in.readInt();
+			int oldLength = in.readInt();
+			int length = in.readInt();
+			if (length < 0) throw new IOException("Negative length: " + length);
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			try {
+				edits.add(offset, oldLength, new String(bytes, UTF_8));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		return edits;
+	}
+	
+	/** Gets the start of an edit's replacement.
+	 * @param i the index of the edit
+	 * @return the start within the shared buffer
+	*/
+	private int replacementStart(int i) {
+		return (i == 0) ? 0 : replacementEnds[i - 1];
+	}
+
+}
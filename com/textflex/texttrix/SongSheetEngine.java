@@ -0,0 +1,714 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Streams song sheets through the chord remover or transposer.
+ * Reads the text a block at a time and converts each line as soon as
+ * its line break arrives, writing the result straight to the output.
+ * Memory use is therefore bounded by the longest line rather than by
+ * the size of the document, so that whole songbook archives can be
+ * converted at once.  The engine needs no graphical environment.
+ * All of its options are fixed at construction, and each conversion
+ * keeps its working storage and counts to itself, so that a single 
+ * engine may run any number of conversions at once on different threads.
+ * Engines built with a {@link SongSheetMetricsListener} also count and
+ * time each conversion, while engines without one skip the metrics 
+ * entirely.
+*/
+public class SongSheetEngine {
+	
+	/* Constants */
+	// number of chars read from the input at a time
+	private static final int BUFFER_SIZE = 8192;
+	// approximate number of chars converted by each parallel task
+	private static final int CHUNK_SIZE = 1 << 18;
+	
+	private final SongSheetOptions options; // the conversion options
+	private final ChordClassifier classifier; // finds the chordal lines
+	// transposes or removes the chordal lines
+	private final ChordLineConverter chordLines;
+	// receives the metrics of each conversion; null to skip the metrics
+	private final SongSheetMetricsListener metricsListener;
+	
+	/** Constructs an engine with the given song sheet options.
+	 * Reuses the chord suffixes and chordal line converter that the 
+	 * options have already compiled, so that engines are cheap to create.
+	 * @param options the song sheet options
+	*/
+	public SongSheetEngine(SongSheetOptions options) {
+		this(options, null);
+	}
+	
+	/** Constructs an engine that reports the metrics of each conversion.
+	 * @param options the song sheet options
+	 * @param metricsListener the listener to receive the metrics; null 
+	 * to skip the metrics
+	*/
+	public SongSheetEngine(SongSheetOptions options, 
+		SongSheetMetricsListener metricsListener) {
+		this.options = options;
+		classifier = new ChordClassifier(options);
+		chordLines = options.getChordLineConverter();
+		this.metricsListener = metricsListener;
+	}
+	
+	/** Gets the options.
+	 * @return the options with which the engine was constructed
+	*/
+	public SongSheetOptions getOptions() { return options; }
+	
+	/** Runs the song sheet maker on the text.
+	 * Works only on the lines within the given region if the options
+	 * call for the selected region, and on the entire text otherwise.
+	 * Text outside of the region is returned unchanged.
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the converted text along with the line counts
+	*/
+	public SongSheetOutcome run(String s, int x, int y) {
+		/* Indices */
+		int n = x; // string index
+		int end = y;
+		// resets the indices to work on the entire text if the selected region
+		// option is unchecked
+		if (!options.getSelectedRegion()) {
+			n = 0;
+			end = s.length();
+		}
+		// lines are converted whole, so the region extends to the end
+		// of the line in which it stops
+		int regionEnd = n;
+		if (n < end) {
+			int lineBreak = s.indexOf("\n", end - 1);
+			regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+		}
+		
+		StringWriter stripped = new StringWriter(s.length()); // storage
+		stripped.write(s, 0, n); // add preceding lines if selected area
+		SongSheetOutcome outcome = null;
+		try {
+			outcome = convertParallel(s, n, regionEnd, stripped);
+		} catch (IOException e) {
+			// string writers don't throw I/O exceptions
+			throw new RuntimeException(e);
+		}
+		// appends the rest of the text if left over after selected region
+		stripped.write(s, regionEnd, s.length() - regionEnd);
+		return new SongSheetOutcome(stripped.toString(), outcome.getLinesRead(),
+			outcome.getLinesChanged());
+	}
+	
+	/** Runs the song sheet maker on the text, finding only the changes
+	 * that it makes rather than building the converted text.
+	 * Converts the same lines as {@link #run(String, int, int)} in a 
+	 * single pass, recording an edit for each chordal line that is
+	 * transposed into something new or removed, and for the line break
+	 * added to a last line that lacks one.  Applying the edits to the
+	 * text gives the text that <code>run</code> would return.
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the edits along with the line counts
+	*/
+	public SongSheetEdits runEdits(String s, int x, int y) {
+		int n = x; // string index
+		int end = y;
+		if (!options.getSelectedRegion()) {
+			n = 0;
+			end = s.length();
+		}
+		// lines are converted whole, so the region extends to the end
+		// of the line in which it stops
+		int regionEnd = n;
+		if (n < end) {
+			int lineBreak = s.indexOf('\n', end - 1);
+			regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+		}
+		
+		SongSheetEdits edits = new SongSheetEdits();
+		Conversion conversion = new Conversion();
+		conversion.diffRegion(s, n, regionEnd, edits);
+		SongSheetOutcome outcome = conversion.finish();
+		edits.setLineCounts(outcome.getLinesRead(), outcome.getLinesChanged());
+		return edits;
+	}
+	
+	/** Parses the text into its lines and chords, to transpose, strip, or
+	 * count without examining the text again.
+	 * Parses only the lines within the given region if the options call
+	 * for the selected region, and the entire text otherwise.
+	 * @param s the text to parse
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the parsed song sheet
+	*/
+	public SongSheetModel parse(String s, int x, int y) {
+		int n = x; // string index
+		int end = y;
+		if (!options.getSelectedRegion()) {
+			n = 0;
+			end = s.length();
+		}
+		// lines are parsed whole, so the region extends to the end
+		// of the line in which it stops
+		int regionEnd = n;
+		if (n < end) {
+			int lineBreak = s.indexOf('\n', end - 1);
+			regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+		}
+		
+		SongSheetModel model = 
+			new SongSheetModel(s, n, regionEnd, options.getChordGrammar());
+		while (n < regionEnd) {
+			int lineBreak = s.indexOf('\n', n);
+			if (lineBreak == -1) lineBreak = s.length();
+			model.addLine(n, lineBreak, classifier.isChordLine(s, n, lineBreak));
+			n = lineBreak + 1;
+		}
+		return model;
+	}
+	
+	/** Converts the song sheet from a byte channel to another byte channel.
+	 * Neither channel is closed.
+	 * @param in the channel to read from
+	 * @param out the channel to write the converted text to
+	 * @param cs the character set of both channels
+	 * @return the line counts
+	 * @throws IOException if either channel fails
+	 * @see #convert(Reader, Writer)
+	*/
+	public SongSheetOutcome convert(ReadableByteChannel in, 
+		WritableByteChannel out, Charset cs) throws IOException {
+		CountingChannel counter = null;
+		if (metricsListener != null) {
+			counter = new CountingChannel(in, out);
+			in = counter;
+			out = counter;
+		}
+		Writer writer = Channels.newWriter(out, cs.newEncoder(), -1);
+		Conversion conversion = new Conversion();
+		convert(Channels.newReader(in, cs.newDecoder(), -1), writer, conversion);
+		writer.flush();
+		if (counter != null) {
+			conversion.metrics.addBytes(counter.bytesIn, counter.bytesOut);
+		}
+		return conversion.finish();
+	}
+	
+	/** Converts the song sheet from a reader to a writer.
+	 * Each line is classified and transposed or removed as soon as
+	 * it has been read.  The writer is written to line by line and
+	 * should be buffered by the caller if necessary; neither stream
+	 * is closed.
+	 * @param in the text to convert
+	 * @param out the destination for the converted text
+	 * @return the line counts
+	 * @throws IOException if either stream fails
+	*/
+	public SongSheetOutcome convert(Reader in, Writer out) throws IOException {
+		Conversion conversion = new Conversion();
+		convert(in, out, conversion);
+		return conversion.finish();
+	}
+	
+	/** Streams the song sheet from a reader to a writer.
+	 * @param in the text to convert
+	 * @param out the destination for the converted text
+	 * @param conversion the storage and counts for the conversion
+	 * @throws IOException if either stream fails
+	*/
+	private void convert(Reader in, Writer out, Conversion conversion) 
+		throws IOException {
+		SongSheetMetrics metrics = conversion.metrics;
+		char[] buf = new char[BUFFER_SIZE];
+		CharBuffer seq = CharBuffer.wrap(buf);
+		int len = 0; // num of chars in the buffer
+		int scan = 0; // position up to which line breaks have been sought
+		int read = 0;
+		long time = (metrics == null) ? 0 : System.nanoTime();
+		while ((read = in.read(buf, len, buf.length - len)) != -1) {
+			if (metrics != null) {
+				metrics.addNanos(SongSheetMetrics.READ, System.nanoTime() - time);
+				metrics.addChars(read, 0);
+			}
+			len += read;
+			// converts every complete line in the buffer
+			int lineStart = 0;
+			for (; scan < len; scan++) {
+				if (buf[scan] == '\n') {
+					conversion.convertLine(seq, lineStart, scan, out);
+					lineStart = scan + 1;
+				}
+			}
+			// carries the unfinished line over to the front of the buffer,
+			// growing the buffer if the line alone fills it
+			len -= lineStart;
+			scan -= lineStart;
+			if (lineStart > 0) {
+				System.arraycopy(buf, lineStart, buf, 0, len);
+			} else if (len == buf.length) {
+				char[] grown = new char[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, len);
+				buf = grown;
+				seq = CharBuffer.wrap(buf);
+			}
+			if (metrics != null) time = System.nanoTime();
+		}
+		if (metrics != null) {
+			metrics.addNanos(SongSheetMetrics.READ, System.nanoTime() - time);
+		}
+		// the last line may not have a line break
+		if (len > 0) conversion.convertLine(seq, 0, len, out);
+	}
+	
+	/** Converts a region of text that is already in memory.
+	 * The region is treated as a whole number of lines, so that a final
+	 * line without a line break is converted in its entirety.
+	 * @param s the text to convert
+	 * @param start the starting index of the region
+	 * @param end the ending index of the region, noninclusive
+	 * @param out the destination for the converted text
+	 * @return the line counts
+	 * @throws IOException if the writer fails
+	*/
+	public SongSheetOutcome convert(CharSequence s, int start, int end, 
+		Writer out) throws IOException {
+		Conversion conversion = new Conversion();
+		conversion.convertRegion(s, start, end, out);
+		return conversion.finish();
+	}
+	
+	/** Converts a region of text in parallel in the common fork/join pool.
+	 * @param s the text to convert
+	 * @param start the starting index of the region
+	 * @param end the ending index of the region, noninclusive
+	 * @param out the destination for the converted text
+	 * @return the line counts
+	 * @throws IOException if the writer fails
+	 * @see #convertParallel(CharSequence, int, int, Writer, ForkJoinPool)
+	*/
+	public SongSheetOutcome convertParallel(CharSequence s, int start, 
+		int end, Writer out) throws IOException {
+		return convertParallel(s, start, end, out, ForkJoinPool.commonPool());
+	}
+	
+	/** Converts a region of text in parallel.
+	 * Splits the region at line breaks into chunks, converts the chunks
+	 * concurrently, and writes them out in their original order, so that
+	 * the output and the line counts are identical to those
+	 * of {@link #convert(CharSequence, int, int, Writer)}.  Regions too 
+	 * small to be worth splitting, or pools with only a single worker,
+	 * simply convert on the calling thread.
+	 * The text must not change during the conversion.
+	 * @param s the text to convert
+	 * @param start the starting index of the region
+	 * @param end the ending index of the region, noninclusive
+	 * @param out the destination for the converted text
+	 * @param pool the pool in which to convert the chunks
+	 * @return the line counts
+	 * @throws IOException if the writer fails
+	*/
+	public SongSheetOutcome convertParallel(CharSequence s, int start, 
+		int end, Writer out, ForkJoinPool pool) throws IOException {
+		if (end - start < 2 * CHUNK_SIZE || pool.getParallelism() < 2) {
+			return convert(s, start, end, out);
+		}
+		
+		// splits the region into chunks that each end after a line break
+		// and starts converting each one as soon as it is found
+		ArrayList<ChunkConversion> chunks = new ArrayList<ChunkConversion>();
+		int chunkStart = start;
+		while (chunkStart < end) {
+			int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, end);
+			while (chunkEnd < end && s.charAt(chunkEnd - 1) != '\n') chunkEnd++;
+			ChunkConversion chunk = new ChunkConversion(s, chunkStart, chunkEnd);
+			chunks.add(chunk);
+			pool.execute(chunk);
+			chunkStart = chunkEnd;
+		}
+		
+		// stitches the chunks back together in order, totalling their counts;
+		// the chunks have already timed writing their lines
+		Conversion total = new Conversion();
+		for (int i = 0; i < chunks.size(); i++) {
+			ChunkConversion chunk = chunks.get(i);
+			chunk.join();
+			chunk.output.writeTo(out);
+			total.add(chunk.conversion);
+			chunks.set(i, null); // frees the chunk's output
+		}
+		return total.finish();
+	}
+	
+	/** Converts a single line on its own, without counting it.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param out the builder to which the converted line is appended,
+	 * without a line break
+	 * @return true if the line should be kept, false if it should be
+	 * removed from the song sheet
+	*/
+	public boolean convertLine(CharSequence s, int start, int end, 
+		StringBuilder out) {
+		if (!classifier.isChordLine(s, start, end)) {
+			out.append(s, start, end);
+			return true;
+		}
+		return chordLines.convertChordLine(s, start, end, out);
+	}
+
+	/** Checks whether a converted line is the same as the original.
+	 * @param converted the converted line
+	 * @param s the text containing the original line
+	 * @param start the starting index of the original line
+	 * @param end the ending index of the original line
+	 * @return true if the lines hold the same chars
+	*/
+	private static boolean contentEquals(CharSequence converted, 
+		CharSequence s, int start, int end) {
+		if (converted.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			if (converted.charAt(i - start) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	/** Writes a range of characters without copying it into a string
+	 * first, when the underlying characters are accessible.
+	 * @param seq the text containing the range
+	 * @param start the starting index of the range
+	 * @param end the ending index of the range, noninclusive
+	 * @param out the writer to write to
+	 * @throws IOException if the writer fails
+	*/
+	private static void write(CharSequence seq, int start, int end, 
+		Writer out) throws IOException {
+		if (seq instanceof String) {
+			out.write((String) seq, start, end - start);
+		} else if (seq instanceof CharBuffer && ((CharBuffer) seq).hasArray()) {
+			CharBuffer buf = (CharBuffer) seq;
+			out.write(buf.array(), buf.arrayOffset() + buf.position() + start,
+				end - start);
+		} else {
+			out.append(seq, start, end);
+		}
+	}
+	
+	/** The working storage and counts of a single conversion.
+	 * Used by only one thread at a time.
+	*/
+	private class Conversion {
+		// reusable storage for each converted chordal line
+		private StringBuilder converted = new StringBuilder();
+		private char[] convertedChars = new char[0];
+		private long linesRead = 0; // num of lines read
+		private long linesChanged = 0; // num of lines kept or transposed
+		// counts and timings, or null if not reporting metrics
+		private SongSheetMetrics metrics = null;
+		
+		/** Constructs the storage for a whole conversion.
+		*/
+		public Conversion() {
+			this(false);
+		}
+		
+		/** Constructs the storage for a conversion or a part of one.
+		 * @param part true for a part, such as a chunk, whose metrics count
+		 * no conversion of their own when added to the total
+		*/
+		public Conversion(boolean part) {
+			if (metricsListener != null) {
+				metrics = part ? SongSheetMetrics.createTotals() 
+					: new SongSheetMetrics();
+			}
+		}
+		
+		/** Converts each line of a region of text.
+		 * @param s the text to convert
+		 * @param start the starting index of the region
+		 * @param end the ending index of the region, noninclusive
+		 * @param out the destination for the converted text
+		 * @throws IOException if the writer fails
+		*/
+		public void convertRegion(CharSequence s, int start, int end, 
+			Writer out) throws IOException {
+			int n = start; // string index
+			int lineBreak = 0; // end of the line, line break non-inclusive
+			if (metrics != null) metrics.addChars(end - start, 0);
+			while (n < end) {
+				// finds the end of the line, whether defined by an "\n" or the end
+				// of the region
+				for (lineBreak = n; lineBreak < end && s.charAt(lineBreak) != '\n'; 
+					lineBreak++);
+				convertLine(s, n, lineBreak, out);
+				// advances to next line
+				n = lineBreak + 1;
+			}
+		}
+		
+		/** Finds the changes that converting each line of a region makes.
+		 * Lyrical lines and chordal lines converted into the same text 
+		 * are left alone.  Counts the lines, chords, and chars when 
+		 * reporting metrics, but doesn't time the phases.
+		 * @param s the text to convert
+		 * @param start the starting index of the region
+		 * @param end the ending index of the region, noninclusive
+		 * @param edits the list to which the edits are added
+		*/
+		public void diffRegion(CharSequence s, int start, int end, 
+			SongSheetEdits edits) {
+			int n = start; // string index
+			int lineBreak = 0; // end of the line, line break non-inclusive
+			while (n < end) {
+				for (lineBreak = n; lineBreak < end && s.charAt(lineBreak) != '\n'; 
+					lineBreak++);
+				linesRead++;
+				boolean chordal = classifier.isChordLine(s, n, lineBreak);
+				boolean kept = true;
+				if (metrics != null) {
+					metrics.addLine(chordal);
+					if (chordal && options.getTranspose()) {
+						metrics.addChords(s, n, lineBreak, options.getChordGrammar());
+					}
+				}
+				if (chordal) {
+					converted.setLength(0);
+					kept = chordLines.convertChordLine(s, n, lineBreak, converted);
+					if (!kept) {
+						// removes the line along with its break
+						edits.add(n, Math.min(lineBreak + 1, end) - n, "");
+					} else if (!contentEquals(converted, s, n, lineBreak)) {
+						edits.add(n, lineBreak - n, converted, 0, converted.length());
+					}
+				}
+				if (kept) {
+					linesChanged++;
+					// every line written ends with a line break
+					if (lineBreak == end) edits.add(end, 0, "\n");
+				}
+				n = lineBreak + 1;
+			}
+			if (metrics != null) {
+				metrics.addChars(end - start, end - start + edits.getLengthChange());
+			}
+		}
+		
+		/** Converts a single line.
+		 * Chordal lines are handed to the chordal line converter, while all 
+		 * other lines are kept as they are.
+		 * @param seq the text containing the line
+		 * @param start the starting index of the line
+		 * @param end the ending index of the line, line break non-inclusive
+		 * @param out the destination for the converted line, which is always
+		 * written with a trailing line break
+		 * @throws IOException if the writer fails
+		*/
+		public void convertLine(CharSequence seq, int start, int end, 
+			Writer out) throws IOException {
+			linesRead++;
+			if (metrics != null) {
+				convertLineMeasured(seq, start, end, out);
+				return;
+			}
+			// retains the line if not flagged as chordal or if kept by the 
+			// chordal line converter
+			if (!classifier.isChordLine(seq, start, end)) {
+				write(seq, start, end, out);
+			} else {
+				converted.setLength(0);
+				if (!chordLines.convertChordLine(seq, start, end, converted)) {
+					return;
+				}
+				writeConverted(out);
+			}
+			out.write('\n');
+			linesChanged++;
+		}
+		
+		/** Converts a single line just as 
+		 * {@link #convertLine(CharSequence, int, int, Writer)} does, while
+		 * counting and timing each phase.
+		 * Kept apart so that conversions without metrics don't pay for them.
+		 * @param seq the text containing the line
+		 * @param start the starting index of the line
+		 * @param end the ending index of the line, line break non-inclusive
+		 * @param out the destination for the converted line
+		 * @throws IOException if the writer fails
+		*/
+		private void convertLineMeasured(CharSequence seq, int start, int end, 
+			Writer out) throws IOException {
+			long time = System.nanoTime();
+			boolean chordal = classifier.isChordLine(seq, start, end);
+			long now = System.nanoTime();
+			metrics.addNanos(SongSheetMetrics.CLASSIFY, now - time);
+			metrics.addLine(chordal);
+			time = now;
+			int len = end - start;
+			if (chordal) {
+				if (options.getTranspose()) {
+					metrics.addChords(seq, start, end, options.getChordGrammar());
+				}
+				converted.setLength(0);
+				boolean kept = chordLines.convertChordLine(seq, start, end, converted);
+				now = System.nanoTime();
+				metrics.addNanos(SongSheetMetrics.CONVERT, now - time);
+				time = now;
+				if (!kept) return;
+				len = converted.length();
+				writeConverted(out);
+			} else {
+				write(seq, start, end, out);
+			}
+			out.write('\n');
+			linesChanged++;
+			metrics.addNanos(SongSheetMetrics.WRITE, System.nanoTime() - time);
+			metrics.addChars(0, len + 1);
+		}
+		
+		/** Writes the converted chordal line.
+		 * @param out the destination for the line
+		 * @throws IOException if the writer fails
+		*/
+		private void writeConverted(Writer out) throws IOException {
+			int len = converted.length();
+			if (convertedChars.length < len) convertedChars = new char[len * 2];
+			converted.getChars(0, len, convertedChars, 0);
+			out.write(convertedChars, 0, len);
+		}
+		
+		/** Adds the counts of another conversion, such as that of a chunk.
+		 * @param other the conversion whose counts to add
+		*/
+		public void add(Conversion other) {
+			linesRead += other.linesRead;
+			linesChanged += other.linesChanged;
+			if (metrics != null) metrics.add(other.metrics);
+		}
+		
+		/** Finishes the conversion, reporting its metrics to the listener
+		 * if any.
+		 * @return the line counts, without any text
+		*/
+		public SongSheetOutcome finish() {
+			if (metrics != null) metricsListener.conversionFinished(metrics);
+			return new SongSheetOutcome(null, linesRead, linesChanged);
+		}
+	}
+	
+	/** Counts the bytes passing through a pair of channels.
+	*/
+	private static class CountingChannel 
+		implements ReadableByteChannel, WritableByteChannel {
+		private ReadableByteChannel in = null; // the channel to read from
+		private WritableByteChannel out = null; // the channel to write to
+		private long bytesIn = 0; // num of bytes read
+		private long bytesOut = 0; // num of bytes written
+		
+		/** Constructs a counter.
+		 * @param in the channel to read from
+		 * @param out the channel to write to
+		*/
+		public CountingChannel(ReadableByteChannel in, WritableByteChannel out) {
+			this.in = in;
+			this.out = out;
+		}
+		
+		public int read(ByteBuffer dst) throws IOException {
+			int read = in.read(dst);
+			if (read > 0) bytesIn += read;
+			return read;
+		}
+		
+		public int write(ByteBuffer src) throws IOException {
+			int written = out.write(src);
+			bytesOut += written;
+			return written;
+		}
+		
+		public boolean isOpen() { return in.isOpen() && out.isOpen(); }
+		
+		/** Leaves both channels open, as the engine never closes them.
+		*/
+		public void close() {}
+	}
+	
+	/** Converts a single chunk of a larger text into a buffer of its own.
+	*/
+	private class ChunkConversion extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private CharSequence s = null; // the text containing the chunk
+		private int start = 0; // the starting index of the chunk
+		private int end = 0; // the ending index of the chunk, noninclusive
+		private CharArrayWriter output = null; // the converted chunk
+		// storage and counts for the chunk, which is only part of a conversion
+		private Conversion conversion = new Conversion(true);
+		
+		/** Constructs a conversion for a chunk.
+		 * @param s the text containing the chunk
+		 * @param start the starting index of the chunk
+		 * @param end the ending index of the chunk, noninclusive
+		*/
+		public ChunkConversion(CharSequence s, int start, int end) {
+			this.s = s;
+			this.start = start;
+			this.end = end;
+			output = new CharArrayWriter(end - start);
+		}
+		
+		/** Converts the chunk.
+		*/
+		protected void compute() {
+			try {
+				conversion.convertRegion(s, start, end, output);
+			} catch (IOException e) {
+				// char array writers don't throw I/O exceptions
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+}
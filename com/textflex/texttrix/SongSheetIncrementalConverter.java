@@ -0,0 +1,273 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.util.*;
+
+/** Reconverts song sheets incrementally as they are edited.
+ * Remembers the conversion of each line, keyed by a hash of the line's
+ * contents and confirmed against the line itself, so that rerunning the
+ * Song Sheet Maker after changing a single verse converts only the lines
+ * that have changed.  Lines no longer in the text are forgotten once they
+ * outnumber the lines in use, and all of the remembered lines are 
+ * forgotten whenever the options change.
+*/
+public class SongSheetIncrementalConverter {
+	
+	/* Constants */
+	// num of converted lines remembered regardless of the text's size
+	private static final int MIN_CACHE_SIZE = 256;
+	// 64-bit FNV-1a hash parameters
+	private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+	private static final long HASH_PRIME = 0x100000001b3L;
+	
+	private SongSheetOptions options = null; // the conversion options
+	private SongSheetEngine engine = null; // converts the changed lines
+	// converted lines, by the hash of their contents
+	private HashMap<Long, LineResult> cache = new HashMap<Long, LineResult>();
+	// lines used since the cache was last pruned
+	private ArrayList<LineResult> used = new ArrayList<LineResult>();
+	// reusable storage for each converted line
+	private StringBuilder converted = new StringBuilder();
+	private int linesConverted = 0; // num of lines converted since pruning
+	private int lastLinesConverted = 0; // num converted before pruning
+	
+	/** Constructs an incremental converter.
+	 * @param options the song sheet options
+	*/
+	public SongSheetIncrementalConverter(SongSheetOptions options) {
+		setOptions(options);
+	}
+	
+	/** Sets the options, forgetting all of the converted lines if the
+	 * options differ from the current ones.
+	 * @param newOptions the song sheet options
+	*/
+	public synchronized void setOptions(SongSheetOptions newOptions) {
+		if (newOptions.equals(options)) return;
+		options = newOptions;
+		engine = new SongSheetEngine(options);
+		cache.clear();
+		used.clear();
+	}
+	
+	/** Gets the options.
+	 * @return the current options
+	*/
+	public synchronized SongSheetOptions getOptions() { return options; }
+	
+	/** Gets the number of lines that the last run actually converted,
+	 * rather than reused, as of its pruning.
+	 * @return the number of lines converted
+	*/
+	public synchronized int getLinesConverted() { return lastLinesConverted; }
+	
+	/** Runs the song sheet maker on the text, converting only the lines
+	 * that have changed since earlier runs.
+	 * Gives the same results as {@link SongSheetEngine#run(String, int, int)}.
+	 * @param s the text to convert
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the converted text along with the line counts
+	*/
+	public synchronized SongSheetOutcome run(String s, int x, int y) {
+		int n = x;
+		int end = y;
+		if (!options.getSelectedRegion()) {
+			n = 0;
+			end = s.length();
+		}
+		// lines are converted whole, so the region extends to the end
+		// of the line in which it stops
+		int regionEnd = n;
+		if (n < end) {
+			int lineBreak = s.indexOf('\n', end - 1);
+			regionEnd = (lineBreak != -1) ? lineBreak + 1 : s.length();
+		}
+		StringBuilder out = new StringBuilder(s.length() + 16);
+		out.append(s, 0, n);
+		SongSheetOutcome outcome = convert(s, n, regionEnd, out);
+		out.append(s, regionEnd, s.length());
+		prune();
+		return new SongSheetOutcome(out.toString(), outcome.getLinesRead(), 
+			outcome.getLinesChanged());
+	}
+	
+	/** Converts a region of whole lines, converting only the lines that 
+	 * have changed since earlier conversions.
+	 * Lets a long text be converted a block at a time, as by 
+	 * {@link SongSheetEngine#convert(CharSequence, int, int, java.io.Writer)},
+	 * with the same output; call {@link #prune()} once the whole text is 
+	 * done.
+	 * @param s the text to convert
+	 * @param start the starting index of the region
+	 * @param end the ending index of the region, noninclusive
+	 * @param out the builder to which to append the converted lines
+	 * @return the line counts
+	*/
+	public synchronized SongSheetOutcome convert(CharSequence s, int start, 
+		int end, StringBuilder out) {
+		long linesRead = 0;
+		long kept = 0;
+		for (int n = start; n < end; ) {
+			int lineBreak = n;
+			while (lineBreak < end && s.charAt(lineBreak) != '\n') lineBreak++;
+			LineResult line = lookup(s, n, lineBreak);
+			used.add(line);
+			linesRead++;
+			if (line.append(s, n, lineBreak, out)) kept++;
+			n = lineBreak + 1;
+		}
+		return new SongSheetOutcome(null, linesRead, kept);
+	}
+	
+	/** Forgets the lines that the conversions since the last pruning 
+	 * haven't used, once they outnumber the lines used.
+	 * Ends the run, so that the lines it converted become those counted
+	 * by {@link #getLinesConverted()}.
+	*/
+	public synchronized void prune() {
+		lastLinesConverted = linesConverted;
+		linesConverted = 0;
+		if (cache.size() > 2 * Math.max(used.size(), MIN_CACHE_SIZE)) {
+			cache.clear();
+			for (int i = 0; i < used.size(); i++) {
+				LineResult line = used.get(i);
+				cache.put(Long.valueOf(line.hash), line);
+			}
+		}
+		used.clear();
+	}
+	
+	/** Gets the conversion of a line, converting the line only if
+	 * it has not been converted before.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @return the converted line
+	*/
+	private LineResult lookup(CharSequence s, int start, int end) {
+		// hashes each char a byte at a time, low byte first, as FNV-1a
+		// expects
+		long hash = HASH_OFFSET;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			hash = (hash ^ (c & 0xff)) * HASH_PRIME;
+			hash = (hash ^ (c >>> 8)) * HASH_PRIME;
+		}
+		Long key = Long.valueOf(hash);
+		LineResult line = cache.get(key);
+		// a line colliding with another simply replaces it
+		if (line != null && regionEquals(line.original, s, start, end)) {
+			return line;
+		}
+		
+		linesConverted++;
+		converted.setLength(0);
+		boolean kept = engine.convertLine(s, start, end, converted);
+		// only stores lines that the conversion has altered
+		String text = null;
+		if (kept && !regionEquals(converted, s, start, end)) {
+			text = converted.toString();
+		}
+		line = new LineResult(hash, s.subSequence(start, end).toString(), kept,
+			text);
+		cache.put(key, line);
+		return line;
+	}
+	
+	/** Checks whether a sequence holds the same chars as a region of text.
+	 * @param b the sequence
+	 * @param s the text
+	 * @param start the starting index of the region
+	 * @param end the ending index of the region, noninclusive
+	 * @return true if the chars are the same
+	*/
+	private static boolean regionEquals(CharSequence b, CharSequence s, 
+		int start, int end) {
+		if (b.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			if (b.charAt(i - start) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	/** The conversion of a single line.
+	*/
+	private static class LineResult {
+		private final long hash; // hash of the original line
+		// the original line, to tell it from others with the same hash
+		private final String original;
+		private final boolean kept; // false if the line is removed
+		// the converted line; null if kept exactly as it was
+		private final String text;
+		
+		/** Constructs a converted line.
+		 * @param hash the hash of the original line
+		 * @param original the original line
+		 * @param kept false if the line is removed
+		 * @param text the converted line, or null if unaltered
+		*/
+		public LineResult(long hash, String original, boolean kept, 
+			String text) {
+			this.hash = hash;
+			this.original = original;
+			this.kept = kept;
+			this.text = text;
+		}
+		
+		/** Appends the converted line, with a line break, unless removed.
+		 * @param s the text containing the original line
+		 * @param start the starting index of the original line
+		 * @param end the ending index of the original line
+		 * @param out the builder to append to
+		 * @return true if the line was kept
+		*/
+		public boolean append(CharSequence s, int start, int end, 
+			StringBuilder out) {
+			if (!kept) return false;
+			if (text == null) {
+				out.append(s, start, end);
+			} else {
+				out.append(text);
+			}
+			out.append('\n');
+			return true;
+		}
+	}
+
+}
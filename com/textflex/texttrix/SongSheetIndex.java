@@ -0,0 +1,860 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** An on-disk index of the chords in a library of song sheets.
+ * Finds the songs that use a given chord, or that play a given chord 
+ * progression in any key, without reading the songs themselves.  Each
+ * song's chords are found just as the Song Sheet Maker finds them, and
+ * each run of up to {@link #MAX_GRAM} chords is recorded by the 
+ * intervals between its family names along with its suffixes, so that
+ * "G D Em C" and "C G Am F" share an entry.  Each entry lists the songs
+ * containing it as delta-encoded song ids packed into variable-length
+ * bytes.  The index file is memory-mapped, and entries are found by 
+ * binary search among the mapped entry hashes, so that only the entries
+ * a query needs are ever read.  Updating the index only parses songs
+ * that are new or have changed, reusing the recorded entries of all the
+ * others.  Indices aren't thread-safe.
+*/
+public class SongSheetIndex {
+	
+	/* Constants */
+	/** Longest progression looked up directly; longer progressions are 
+	 * found by combining the runs they contain */
+	public static final int MAX_GRAM = 4;
+	private static final int MAGIC = 0x53534958; // "SSIX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 44; // bytes before the songs
+	private static final int NUM_NOTES = 12; // half steps per octave
+	// kinds of entries
+	private static final int PROGRESSION = 'P';
+	private static final int CHORD = 'C';
+	// 64-bit FNV-1a hash parameters
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final String USAGE = 
+		"Usage: java com.textflex.texttrix.SongSheetIndex <index file> "
+			+ "[options]\n"
+			+ "Options:\n"
+			+ "  -update <dir>         index the song library, reparsing only "
+			+ "new\n"
+			+ "                        or changed files\n"
+			+ "  -progression <chords> find songs with the chord progression, "
+			+ "in any key,\n"
+			+ "                        such as \"G D Em C\"\n"
+			+ "  -chord <chord>        find songs using the chord, such as "
+			+ "\"Bbsus\"\n"
+			+ "  -suffixes <list>      comma-delimited chord suffixes (default \""
+			+ SongSheetOptions.DEFAULT_CHORD_INDICATORS + "\")\n"
+			+ "  -threshold <n>        max chords to check per line, 0 for all "
+			+ "(default 2)\n"
+			+ "  -strict               accept only whole chords, such as "
+			+ "\"Am7/G\"\n"
+			+ "  -charset <name>       character set of the songs (default UTF-8)";
+	
+	private File file = null; // the index file
+	private SongSheetEngine engine = null; // finds the chords
+	private int optionsHash = 0; // identifies the chord recognition options
+	private Charset charset = null; // character set of the songs
+	
+	/* Songs */
+	private int songCount = 0; // num of songs
+	private String[] paths = new String[0]; // path of each song
+	private long[] modified = new long[0]; // time each song was last modified
+	private long[] lengths = new long[0]; // length of each song in bytes
+	
+	/* Entries, left in the mapped file */
+	private ByteBuffer buf = null; // the mapped index
+	private int entryCount = 0; // num of entries
+	private int hashesOffset = 0; // sorted hash of each entry
+	// start of each entry's postings, followed by their end
+	private int postingsIndexOffset = 0;
+	// start of each song's entry ids, followed by their end
+	private int forwardIndexOffset = 0;
+	
+	/** Opens an index, or starts an empty one if the file doesn't exist
+	 * or was built with other chord recognition options.
+	 * Only the chord suffixes, threshold, and strict chords flag of the
+	 * options matter.
+	 * @param file the index file
+	 * @param options the options with which to find chords
+	 * @param charset the character set of the songs
+	 * @throws IOException if the file can't be read or isn't an index
+	*/
+	public SongSheetIndex(File file, SongSheetOptions options, 
+		Charset charset) throws IOException {
+		this.file = file;
+		this.charset = charset;
+		SongSheetOptions normalized = options.normalize();
+		engine = new SongSheetEngine(new SongSheetOptions(
+			normalized.getChordIndicatorsList(), normalized.getThreshold(), 
+			true, 0, false, false, false, normalized.getStrictChords()));
+		optionsHash = (normalized.getChordIndicatorsList().hashCode() * 31 
+			+ normalized.getThreshold()) * 31 
+			+ (normalized.getStrictChords() ? 1 : 0);
+		if (file.isFile()) open();
+	}
+	
+	/** Runs the index from the command line.
+	 * @param args the index file, followed by the options
+	*/
+	public static void main(String[] args) {
+		String chordIndicatorsList = SongSheetOptions.DEFAULT_CHORD_INDICATORS;
+		int threshold = 2;
+		boolean strictChords = false;
+		String charsetName = "UTF-8";
+		File library = null;
+		String progression = null;
+		String chord = null;
+		File indexFile = null;
+		
+		// parses the options
+		try {
+			if (args.length == 0 || args[0].startsWith("-")) {
+				throw new IllegalArgumentException("Expected an index file");
+			}
+			indexFile = new File(args[0]);
+			for (int n = 1; n < args.length; n++) {
+				String arg = args[n];
+				if (arg.equals("-update")) {
+					library = new File(args[++n]);
+				} else if (arg.equals("-progression")) {
+					progression = args[++n];
+				} else if (arg.equals("-chord")) {
+					chord = args[++n];
+				} else if (arg.equals("-suffixes")) {
+					chordIndicatorsList = args[++n];
+				} else if (arg.equals("-threshold")) {
+					threshold = Integer.parseInt(args[++n]);
+				} else if (arg.equals("-strict")) {
+					strictChords = true;
+				} else if (arg.equals("-charset")) {
+					charsetName = args[++n];
+				} else {
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+			if (library != null && !library.isDirectory()) {
+				throw new IllegalArgumentException("Not a directory: " + library);
+			}
+		} catch (RuntimeException e) {
+			// covers missing option values and malformed numbers as well
+			System.err.println(e.getMessage() == null ? e.toString() : e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		try {
+			SongSheetIndex index = new SongSheetIndex(indexFile, 
+				new SongSheetOptions(chordIndicatorsList, threshold, true, 0, 
+					false, false, false, strictChords), 
+				Charset.forName(charsetName));
+			if (library != null) {
+				long start = System.nanoTime();
+				int parsed = index.update(library);
+				System.out.println("Indexed " + index.getSongCount() + " songs ("
+					+ parsed + " parsed) in " 
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+			}
+			if (progression != null) {
+				printSongs(index, index.findProgression(progression));
+			}
+			if (chord != null) printSongs(index, index.findChord(chord));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+	
+	/** Prints the paths of songs found by a query.
+	 * @param index the index queried
+	 * @param songs the ids of the songs found
+	*/
+	private static void printSongs(SongSheetIndex index, int[] songs) {
+		for (int i = 0; i < songs.length; i++) {
+			System.out.println(index.getPath(songs[i]));
+		}
+		System.out.println(songs.length + " songs found");
+	}
+	
+	/** Maps the index file and reads its table of songs.
+	 * Leaves the index empty if the file was built with other options.
+	 * @throws IOException if the file can't be read or isn't an index
+	*/
+	private void open() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			// the mapping stays valid after the channel closes
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+			throw new IOException("Not a song sheet index: " + file);
+		}
+		if (buf.getInt(4) != VERSION) {
+			throw new IOException("Unsupported index version: " + file);
+		}
+		if (buf.getInt(8) != optionsHash) {
+			clear();
+			return;
+		}
+		songCount = buf.getInt(12);
+		entryCount = buf.getInt(16);
+		int songsOffset = buf.getInt(20);
+		hashesOffset = buf.getInt(24);
+		postingsIndexOffset = buf.getInt(28);
+		forwardIndexOffset = buf.getInt(36);
+		
+		// reads in the songs, whose paths are needed for every query
+		paths = new String[songCount];
+		modified = new long[songCount];
+		lengths = new long[songCount];
+		ByteBuffer songs = buf.duplicate();
+		songs.position(songsOffset);
+		for (int i = 0; i < songCount; i++) {
+			modified[i] = songs.getLong();
+			lengths[i] = songs.getLong();
+			byte[] path = new byte[songs.getInt()];
+			songs.get(path);
+			paths[i] = new String(path, "UTF-8");
+		}
+	}
+	
+	/** Empties the index, without changing the file.
+	*/
+	private void clear() {
+		buf = null;
+		songCount = 0;
+		entryCount = 0;
+		paths = new String[0];
+		modified = new long[0];
+		lengths = new long[0];
+	}
+	
+	/** Gets the number of songs.
+	 * @return the number of songs indexed
+	*/
+	public int getSongCount() { return songCount; }
+	
+	/** Gets the path of a song.
+	 * @param song the song id
+	 * @return the path of the song's file
+	*/
+	public String getPath(int song) { return paths[song]; }
+	
+	/** Finds the songs that use a chord.
+	 * Chords are matched by their family name, in any spelling, and 
+	 * their suffix, so that "A#sus" also finds "Bbsus".
+	 * @param chord the chord, such as "Bbsus"
+	 * @return the ids of the songs, in ascending order
+	 * @throws IllegalArgumentException if the chord can't be recognized
+	*/
+	public int[] findChord(String chord) {
+		ChordSequence query = parseQuery(chord);
+		if (query.length != 1) {
+			throw new IllegalArgumentException("Not a single chord: " + chord);
+		}
+		return getPostings(hashChord(query.roots[0], query.suffixes[0]));
+	}
+	
+	/** Finds the songs that play a chord progression in any key.
+	 * Repeated chords are played as one, both in the query and in the 
+	 * songs, and a chord with an unknown family name interrupts a 
+	 * progression.  Progressions longer than {@link #MAX_GRAM} are first
+	 * narrowed to the songs containing every run of that many chords,
+	 * and then checked against those songs' files.
+	 * @param progression the chords, such as "G D Em C"
+	 * @return the ids of the songs, in ascending order
+	 * @throws IllegalArgumentException if any of the chords can't be 
+	 * recognized
+	 * @throws IOException if a song that must be checked can't be read
+	*/
+	public int[] findProgression(String progression) throws IOException {
+		ChordSequence query = parseQuery(progression);
+		int gram = Math.min(query.length, MAX_GRAM);
+		int[] songs = null;
+		for (int start = 0; start + gram <= query.length; start++) {
+			int[] postings = getPostings(
+				hashProgression(query.roots, query.suffixes, start, gram));
+			songs = (songs == null) ? postings : intersect(songs, postings);
+			if (songs.length == 0) return songs;
+		}
+		if (query.length <= MAX_GRAM) return songs;
+		
+		// checks the remaining candidates for the whole progression
+		int found = 0;
+		for (int i = 0; i < songs.length; i++) {
+			File song = new File(paths[songs[i]]);
+			if (song.isFile() && createSequence(parse(song)).contains(query)) {
+				songs[found++] = songs[i];
+			}
+		}
+		return Arrays.copyOf(songs, found);
+	}
+	
+	/** Parses the chords of a query.
+	 * @param chords the chords, separated by spaces
+	 * @return the sequence of chords
+	 * @throws IllegalArgumentException if there are no chords or any of
+	 * them can't be recognized
+	*/
+	private ChordSequence parseQuery(String chords) {
+		ChordGrammar grammar = engine.getOptions().getChordGrammar();
+		int len = chords.length();
+		// words that the grammar would skip in a song are unknown here
+		if (grammar != null) {
+			int n = ChordClassifier.skipBlankspace(chords, 0, len);
+			for (; n < len && n != -1; 
+				n = ChordClassifier.nextWordPos(chords, n, len)) {
+				if (!grammar.matches(chords, n, len)) {
+					throw new IllegalArgumentException("Unknown chord in: " + chords);
+				}
+			}
+		}
+		SongSheetModel model = new SongSheetModel(chords, 0, len, grammar);
+		model.addLine(0, len, true);
+		if (model.getUnknownChordCount() > 0) {
+			throw new IllegalArgumentException("Unknown chord in: " + chords);
+		}
+		ChordSequence sequence = createSequence(model);
+		if (sequence.length == 0) {
+			throw new IllegalArgumentException("No chords in: " + chords);
+		}
+		return sequence;
+	}
+	
+	/** Updates the index to match a song library.
+	 * Songs that have kept the same path, length, and modification time
+	 * keep their recorded entries, while all other songs are parsed.
+	 * Songs no longer in the library are dropped.  The new index is 
+	 * written to a temporary file and then moved over the index file.
+	 * @param library the directory of songs, searched recursively
+	 * @return the number of songs parsed
+	 * @throws IOException if a song or the index can't be read or written
+	*/
+	public int update(File library) throws IOException {
+		ArrayList<File> files = new ArrayList<File>();
+		listSongs(library, files);
+		Collections.sort(files);
+		HashMap<String, Integer> oldSongs = new HashMap<String, Integer>();
+		for (int i = 0; i < songCount; i++) {
+			oldSongs.put(paths[i], Integer.valueOf(i));
+		}
+		
+		// gathers the entries of each song
+		int newCount = files.size();
+		String[] newPaths = new String[newCount];
+		long[] newModified = new long[newCount];
+		long[] newLengths = new long[newCount];
+		long[][] songHashes = new long[newCount][];
+		int parsed = 0;
+		long totalHashes = 0;
+		for (int i = 0; i < newCount; i++) {
+			File song = files.get(i);
+			newPaths[i] = song.getAbsolutePath();
+			newModified[i] = song.lastModified();
+			newLengths[i] = song.length();
+			Integer old = oldSongs.get(newPaths[i]);
+			if (old != null && modified[old.intValue()] == newModified[i]
+				&& lengths[old.intValue()] == newLengths[i]) {
+				songHashes[i] = getSongHashes(old.intValue());
+			} else {
+				songHashes[i] = createSequence(parse(song)).getHashes();
+				parsed++;
+			}
+			totalHashes += songHashes[i].length;
+		}
+		
+		// collects the distinct entries, in order of their hashes
+		if (totalHashes > Integer.MAX_VALUE) {
+			throw new IOException("Too many chords to index");
+		}
+		long[] hashes = new long[(int) totalHashes];
+		int n = 0;
+		for (int i = 0; i < newCount; i++) {
+			System.arraycopy(songHashes[i], 0, hashes, n, songHashes[i].length);
+			n += songHashes[i].length;
+		}
+		Arrays.sort(hashes);
+		int newEntryCount = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (i == 0 || hashes[i] != hashes[i - 1]) {
+				hashes[newEntryCount++] = hashes[i];
+			}
+		}
+		hashes = Arrays.copyOf(hashes, newEntryCount);
+		
+		// replaces each song's hashes by entry ids, counting the songs
+		// in each entry
+		int[][] songEntries = new int[newCount][];
+		int[] entrySongs = new int[newEntryCount];
+		for (int i = 0; i < newCount; i++) {
+			int[] entries = new int[songHashes[i].length];
+			for (int j = 0; j < entries.length; j++) {
+				entries[j] = Arrays.binarySearch(hashes, songHashes[i][j]);
+				entrySongs[entries[j]]++;
+			}
+			Arrays.sort(entries);
+			songEntries[i] = entries;
+			songHashes[i] = null;
+		}
+		
+		// inverts the songs' entries into each entry's songs, in order
+		int[] postingsStarts = new int[newEntryCount + 1];
+		for (int i = 0; i < newEntryCount; i++) {
+			postingsStarts[i + 1] = postingsStarts[i] + entrySongs[i];
+		}
+		int[] postings = new int[postingsStarts[newEntryCount]];
+		int[] fill = Arrays.copyOf(postingsStarts, newEntryCount);
+		for (int i = 0; i < newCount; i++) {
+			for (int j = 0; j < songEntries[i].length; j++) {
+				postings[fill[songEntries[i][j]]++] = i;
+			}
+		}
+		
+		write(newPaths, newModified, newLengths, hashes, postings, 
+			postingsStarts, songEntries);
+		open();
+		return parsed;
+	}
+	
+	/** Finds the songs in a library.
+	 * @param dir the directory to search
+	 * @param files the list to which to add the songs
+	 * @throws IOException if a directory can't be listed
+	*/
+	private void listSongs(File dir, List<File> files) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null) throw new IOException("Unable to list " + dir);
+		for (int i = 0; i < children.length; i++) {
+			File child = children[i];
+			if (child.isDirectory()) {
+				listSongs(child, files);
+			} else if (child.isFile() && !child.equals(file) 
+				&& !child.getName().startsWith(".")) {
+				files.add(child);
+			}
+		}
+	}
+	
+	/** Parses a song's chords.
+	 * @param song the song's file
+	 * @return the parsed song
+	 * @throws IOException if the file can't be read
+	*/
+	private SongSheetModel parse(File song) throws IOException {
+		StringBuilder text = new StringBuilder((int) Math.min(song.length(), 
+			Integer.MAX_VALUE));
+		Reader reader = new InputStreamReader(new FileInputStream(song), charset);
+		try {
+			char[] chars = new char[8192];
+			for (int len; (len = reader.read(chars)) != -1;) {
+				text.append(chars, 0, len);
+			}
+		} finally {
+			reader.close();
+		}
+		return engine.parse(text.toString(), 0, 0);
+	}
+	
+	/** Writes the index to a temporary file and moves it over the index
+	 * file.
+	 * @param songPaths the path of each song
+	 * @param songModified the modification time of each song
+	 * @param songLengths the length of each song
+	 * @param hashes the hash of each entry, in ascending order
+	 * @param postings the ids of the songs in each entry, entry by entry
+	 * @param postingsStarts the start of each entry's songs in 
+	 * <code>postings</code>, followed by their end
+	 * @param songEntries the ids of the entries of each song, in 
+	 * ascending order
+	 * @throws IOException if the file can't be written
+	*/
+	private void write(String[] songPaths, long[] songModified, 
+		long[] songLengths, long[] hashes, int[] postings, int[] postingsStarts,
+		int[][] songEntries) throws IOException {
+		int newCount = songPaths.length;
+		int newEntryCount = hashes.length;
+		
+		// encodes the variable-length sections first to find the offsets
+		ByteArrayOutputStream songs = new ByteArrayOutputStream();
+		DataOutputStream songsOut = new DataOutputStream(songs);
+		for (int i = 0; i < newCount; i++) {
+			byte[] path = songPaths[i].getBytes("UTF-8");
+			songsOut.writeLong(songModified[i]);
+			songsOut.writeLong(songLengths[i]);
+			songsOut.writeInt(path.length);
+			songsOut.write(path);
+		}
+		VarIntWriter postingsOut = new VarIntWriter();
+		int[] postingsIndex = new int[newEntryCount + 1];
+		for (int i = 0; i < newEntryCount; i++) {
+			postingsIndex[i] = postingsOut.size();
+			postingsOut.writeDeltas(postings, postingsStarts[i], 
+				postingsStarts[i + 1]);
+		}
+		postingsIndex[newEntryCount] = postingsOut.size();
+		VarIntWriter forwardOut = new VarIntWriter();
+		int[] forwardIndex = new int[newCount + 1];
+		for (int i = 0; i < newCount; i++) {
+			forwardIndex[i] = forwardOut.size();
+			forwardOut.writeDeltas(songEntries[i], 0, songEntries[i].length);
+		}
+		forwardIndex[newCount] = forwardOut.size();
+		
+		long songsOffset = HEADER_SIZE;
+		long newHashesOffset = songsOffset + songs.size();
+		long newPostingsIndexOffset = newHashesOffset + 8L * newEntryCount;
+		long postingsOffset = newPostingsIndexOffset + 4L * (newEntryCount + 1);
+		long newForwardIndexOffset = postingsOffset + postingsOut.size();
+		long forwardOffset = newForwardIndexOffset + 4L * (newCount + 1);
+		if (forwardOffset + forwardOut.size() > Integer.MAX_VALUE) {
+			throw new IOException("Index too large to map");
+		}
+		
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(optionsHash);
+			out.writeInt(newCount);
+			out.writeInt(newEntryCount);
+			out.writeInt((int) songsOffset);
+			out.writeInt((int) newHashesOffset);
+			out.writeInt((int) newPostingsIndexOffset);
+			out.writeInt((int) postingsOffset);
+			out.writeInt((int) newForwardIndexOffset);
+			out.writeInt((int) forwardOffset);
+			songs.writeTo(out);
+			for (int i = 0; i < newEntryCount; i++) out.writeLong(hashes[i]);
+			// offsets are stored from the start of the file
+			for (int i = 0; i <= newEntryCount; i++) {
+				out.writeInt((int) postingsOffset + postingsIndex[i]);
+			}
+			postingsOut.writeTo(out);
+			for (int i = 0; i <= newCount; i++) {
+				out.writeInt((int) forwardOffset + forwardIndex[i]);
+			}
+			forwardOut.writeTo(out);
+		} finally {
+			out.close();
+		}
+		clear();
+		Files.move(temp.toPath(), file.toPath(), 
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/** Finds the songs in an entry.
+	 * @param hash the hash of the entry
+	 * @return the ids of the songs, in ascending order; empty if there
+	 * is no such entry
+	*/
+	private int[] getPostings(long hash) {
+		int entry = findEntry(hash);
+		if (entry == -1) return new int[0];
+		return readDeltas(buf.getInt(postingsIndexOffset + 4 * entry),
+			buf.getInt(postingsIndexOffset + 4 * (entry + 1)));
+	}
+	
+	/** Gets the hashes of the entries of a song already indexed.
+	 * @param song the song id
+	 * @return the hashes, in order of the entry ids
+	*/
+	private long[] getSongHashes(int song) {
+		int[] entries = readDeltas(buf.getInt(forwardIndexOffset + 4 * song),
+			buf.getInt(forwardIndexOffset + 4 * (song + 1)));
+		long[] hashes = new long[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			hashes[i] = buf.getLong(hashesOffset + 8 * entries[i]);
+		}
+		return hashes;
+	}
+	
+	/** Finds an entry by binary search among the mapped hashes.
+	 * @param hash the hash of the entry
+	 * @return the entry id, or -1 if not found
+	*/
+	private int findEntry(long hash) {
+		int low = 0;
+		int high = entryCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midHash = buf.getLong(hashesOffset + 8 * mid);
+			if (midHash < hash) {
+				low = mid + 1;
+			} else if (midHash > hash) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	/** Decodes a list of ascending ints from their variable-length 
+	 * deltas.
+	 * Each delta is stored seven bits to a byte, lowest bits first, with
+	 * the high bit set on every byte but the last.
+	 * @param start the position of the first delta in the mapped index
+	 * @param end the position of the end of the deltas
+	 * @return the ints
+	*/
+	private int[] readDeltas(int start, int end) {
+		// each int takes at least one byte
+		int[] values = new int[end - start];
+		int count = 0;
+		int value = 0;
+		for (int pos = start; pos < end;) {
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf.get(pos++);
+				delta |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			value += delta;
+			values[count++] = value;
+		}
+		return Arrays.copyOf(values, count);
+	}
+	
+	/** Finds the ints common to two ascending lists.
+	 * @param a the first list
+	 * @param b the second list
+	 * @return the common ints, in ascending order
+	*/
+	private static int[] intersect(int[] a, int[] b) {
+		int[] common = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				common[count++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(common, count);
+	}
+	
+	/** Builds the sequence of chords of a parsed song.
+	 * @param model the parsed song
+	 * @return the sequence
+	*/
+	private static ChordSequence createSequence(SongSheetModel model) {
+		int chords = model.getChordCount();
+		ChordSequence sequence = new ChordSequence(chords);
+		for (int i = 0; i < chords; i++) {
+			sequence.add(model.getChordSemitone(i), 
+				model.getSuffix(model.getSuffixId(i)));
+		}
+		return sequence;
+	}
+	
+	/** Hashes an entry for a single chord.
+	 * @param root the chord's half steps above "A"
+	 * @param suffix the chord's suffix
+	 * @return the hash
+	*/
+	private static long hashChord(int root, String suffix) {
+		long hash = hash(FNV_OFFSET, CHORD);
+		hash = hash(hash, root);
+		return hash(hash, suffix);
+	}
+	
+	/** Hashes an entry for a run of chords, by the intervals from the
+	 * first chord's family name.
+	 * @param roots the half steps above "A" of each chord
+	 * @param suffixes the suffix of each chord
+	 * @param start the index of the first chord of the run
+	 * @param length the number of chords in the run
+	 * @return the hash
+	*/
+	private static long hashProgression(int[] roots, String[] suffixes, 
+		int start, int length) {
+		long hash = hash(FNV_OFFSET, PROGRESSION);
+		hash = hash(hash, length);
+		for (int i = start; i < start + length; i++) {
+			hash = hash(hash, (roots[i] - roots[start] + NUM_NOTES) % NUM_NOTES);
+			hash = hash(hash, suffixes[i]);
+		}
+		return hash;
+	}
+	
+	/** Adds a small int to a hash.
+	 * @param hash the hash so far
+	 * @param value the int, from 0 to 65535
+	 * @return the new hash
+	*/
+	private static long hash(long hash, int value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+	
+	/** Adds a string to a hash, followed by a separator.
+	 * @param hash the hash so far
+	 * @param s the string
+	 * @return the new hash
+	*/
+	private static long hash(long hash, String s) {
+		for (int i = 0; i < s.length(); i++) hash = hash(hash, s.charAt(i));
+		return hash(hash, 0xffff);
+	}
+	
+	/** The chords of a song or query, in order.
+	 * Repeated chords are kept once, and chords with unknown family names
+	 * are kept as breaks in the sequence.
+	*/
+	private static class ChordSequence {
+		private int[] roots = null; // half steps above "A", or -1 for a break
+		private String[] suffixes = null; // suffix of each chord
+		private int length = 0; // num of chords and breaks
+		
+		/** Constructs an empty sequence.
+		 * @param capacity the most chords to be added
+		*/
+		public ChordSequence(int capacity) {
+			roots = new int[capacity];
+			suffixes = new String[capacity];
+		}
+		
+		/** Adds a chord, unless it repeats the last one.
+		 * @param root the chord's half steps above "A", or -1 if unknown
+		 * @param suffix the chord's suffix
+		*/
+		public void add(int root, String suffix) {
+			if (length > 0 && roots[length - 1] == root 
+				&& (root == -1 || suffixes[length - 1].equals(suffix))) {
+				return;
+			}
+			roots[length] = root;
+			suffixes[length++] = suffix;
+		}
+		
+		/** Gets the hashes of every entry in the sequence.
+		 * @return the distinct hashes, in ascending order
+		*/
+		public long[] getHashes() {
+			long[] hashes = new long[length * (MAX_GRAM + 1)];
+			int count = 0;
+			int run = 0; // num of chords since the last break
+			for (int i = 0; i < length; i++) {
+				if (roots[i] == -1) {
+					run = 0;
+					continue;
+				}
+				run++;
+				hashes[count++] = hashChord(roots[i], suffixes[i]);
+				// adds each run of chords ending with this one
+				for (int gram = 1; gram <= Math.min(run, MAX_GRAM); gram++) {
+					hashes[count++] = 
+						hashProgression(roots, suffixes, i - gram + 1, gram);
+				}
+			}
+			Arrays.sort(hashes, 0, count);
+			int distinct = 0;
+			for (int i = 0; i < count; i++) {
+				if (i == 0 || hashes[i] != hashes[i - 1]) {
+					hashes[distinct++] = hashes[i];
+				}
+			}
+			return Arrays.copyOf(hashes, distinct);
+		}
+		
+		/** Checks whether the sequence plays a progression in any key.
+		 * @param query the progression, without breaks
+		 * @return true if the sequence contains the progression
+		*/
+		public boolean contains(ChordSequence query) {
+			for (int start = 0; start + query.length <= length; start++) {
+				if (roots[start] == -1) continue;
+				int i = 0;
+				for (; i < query.length; i++) {
+					int root = roots[start + i];
+					if (root == -1 || !suffixes[start + i].equals(query.suffixes[i])
+						|| (root - roots[start] + NUM_NOTES) % NUM_NOTES 
+						!= (query.roots[i] - query.roots[0] + NUM_NOTES) % NUM_NOTES) {
+						break;
+					}
+				}
+				if (i == query.length) return true;
+			}
+			return false;
+		}
+	}
+	
+	/** Collects ascending ints as variable-length deltas.
+	*/
+	private static class VarIntWriter extends ByteArrayOutputStream {
+		
+		/** Writes a list of ascending ints as the deltas between them.
+		 * @param values the ints
+		 * @param start the index of the first int to write
+		 * @param end the index of the end of the ints to write
+		*/
+		public void writeDeltas(int[] values, int start, int end) {
+			int last = 0;
+			for (int i = start; i < end; i++) {
+				int delta = values[i] - last;
+				last = values[i];
+				while ((delta & ~0x7f) != 0) {
+					write(delta & 0x7f | 0x80);
+					delta >>>= 7;
+				}
+				write(delta);
+			}
+		}
+	}
+
+}
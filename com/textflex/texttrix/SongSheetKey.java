@@ -0,0 +1,247 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+/** A musical key, such as "G" or "Em".
+ * Keys can be named, estimated from the notes of a song's chords, and
+ * compared to find how far to transpose a song from one key to another.
+ * Estimates correlate the song's notes with the Krumhansl-Kessler
+ * profiles of how prominent each note is in each major and minor key.
+*/
+public class SongSheetKey {
+	
+	/* Constants */
+	private static final int NUM_NOTES = 12; // half steps per octave
+	// names of the major keys, by half steps above "A"
+	private static final String[] MAJOR_NAMES = {
+		"A", "Bb", "B", "C", "Db", "D", "Eb", "E", "F", "F#", "G", "Ab"
+	};
+	// names of the minor keys, by half steps above "A"
+	private static final String[] MINOR_NAMES = {
+		"Am", "Bbm", "Bm", "Cm", "C#m", "Dm", "Ebm", "Em", "Fm", "F#m", "Gm", 
+		"G#m"
+	};
+	// flags the major keys whose signatures have flats, by half steps 
+	// above "A"
+	private static final boolean[] MAJOR_FLATS = {
+		false, true, false, false, true, false, true, false, true, false, false,
+		true
+	};
+	// flags the minor keys whose signatures have flats, by half steps 
+	// above "A"
+	private static final boolean[] MINOR_FLATS = {
+		false, true, false, true, false, true, true, false, true, false, true,
+		false
+	};
+	// prominence of each note in a major key, from the tonic up
+	private static final double[] MAJOR_PROFILE = {
+		6.35, 2.23, 3.48, 2.33, 4.38, 4.09, 2.52, 5.19, 2.39, 3.66, 2.29, 2.88
+	};
+	// prominence of each note in a minor key, from the tonic up
+	private static final double[] MINOR_PROFILE = {
+		6.33, 2.68, 3.52, 5.38, 2.60, 3.53, 2.54, 4.75, 3.98, 2.69, 3.34, 3.17
+	};
+	
+	private final int tonic; // half steps above "A", from 0 to 11
+	private final boolean minor; // flags a minor key
+	
+	/** Constructs a key.
+	 * @param tonic the number of half steps of the key's tonic above "A",
+	 * from 0 to 11
+	 * @param minor true for a minor key
+	*/
+	public SongSheetKey(int tonic, boolean minor) {
+		if (tonic < 0 || tonic >= NUM_NOTES) {
+			throw new IllegalArgumentException("Tonic out of range: " + tonic);
+		}
+		this.tonic = tonic;
+		this.minor = minor;
+	}
+	
+	/** Parses a key from its name.
+	 * @param name the key's family name, with any sharp or flat, followed
+	 * by "m" for minor keys, such as "Bb" or "F#m"
+	 * @return the key
+	 * @throws IllegalArgumentException if the name isn't a key
+	*/
+	public static SongSheetKey parse(String name) {
+		String s = name.trim();
+		int len = s.length();
+		boolean minor = len > 1 && s.charAt(len - 1) == 'm';
+		if (minor) len--;
+		int accidental = ChordTransposer.NATURAL;
+		if (len == 2 && s.charAt(1) == '#') {
+			accidental = ChordTransposer.SHARP;
+		} else if (len == 2 && s.charAt(1) == 'b') {
+			accidental = ChordTransposer.FLAT;
+		} else if (len != 1) {
+			throw new IllegalArgumentException("Not a key: " + name);
+		}
+		int tonic = ChordTransposer.toSemitone(s.charAt(0), accidental);
+		if (tonic == -1) {
+			throw new IllegalArgumentException("Not a key: " + name);
+		}
+		return new SongSheetKey(tonic, minor);
+	}
+	
+	/** Gets the names of all the keys, the major keys first.
+	 * @return the key names
+	*/
+	public static String[] getKeyNames() {
+		String[] names = new String[NUM_NOTES * 2];
+		// starts each list of keys from "C"
+		for (int i = 0; i < NUM_NOTES; i++) {
+			names[i] = MAJOR_NAMES[(i + 3) % NUM_NOTES];
+			names[i + NUM_NOTES] = MINOR_NAMES[(i + 3) % NUM_NOTES];
+		}
+		return names;
+	}
+	
+	/** Estimates the key from the notes of a song.
+	 * Chooses the key whose profile correlates best with how often each
+	 * note is heard.
+	 * @param histogram the weight of each note, by half steps above "A"
+	 * @return the estimated key; null if the histogram is empty
+	*/
+	public static SongSheetKey estimate(int[] histogram) {
+		long total = 0;
+		for (int i = 0; i < NUM_NOTES; i++) total += histogram[i];
+		if (total == 0) return null;
+		SongSheetKey best = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int tonic = 0; tonic < NUM_NOTES; tonic++) {
+			double major = correlate(histogram, MAJOR_PROFILE, tonic);
+			if (major > bestScore) {
+				bestScore = major;
+				best = new SongSheetKey(tonic, false);
+			}
+			double minor = correlate(histogram, MINOR_PROFILE, tonic);
+			if (minor > bestScore) {
+				bestScore = minor;
+				best = new SongSheetKey(tonic, true);
+			}
+		}
+		return best;
+	}
+	
+	/** Correlates the notes of a song with a key's profile.
+	 * @param histogram the weight of each note, by half steps above "A"
+	 * @param profile the prominence of each note, from the tonic up
+	 * @param tonic the key's tonic, in half steps above "A"
+	 * @return the Pearson correlation, from -1 to 1
+	*/
+	private static double correlate(int[] histogram, double[] profile, 
+		int tonic) {
+		double meanX = 0;
+		double meanY = 0;
+		for (int i = 0; i < NUM_NOTES; i++) {
+			meanX += histogram[(tonic + i) % NUM_NOTES];
+			meanY += profile[i];
+		}
+		meanX /= NUM_NOTES;
+		meanY /= NUM_NOTES;
+		double xy = 0;
+		double xx = 0;
+		double yy = 0;
+		for (int i = 0; i < NUM_NOTES; i++) {
+			double x = histogram[(tonic + i) % NUM_NOTES] - meanX;
+			double y = profile[i] - meanY;
+			xy += x * y;
+			xx += x * x;
+			yy += y * y;
+		}
+		return (xx == 0) ? 0 : xy / Math.sqrt(xx * yy);
+	}
+	
+	/** Gets the tonic.
+	 * @return the number of half steps of the tonic above "A"
+	*/
+	public int getTonic() { return tonic; }
+	
+	/** Gets the minor flag.
+	 * @return true for a minor key
+	*/
+	public boolean isMinor() { return minor; }
+	
+	/** Checks whether the key's signature has flats rather than sharps.
+	 * Chords transposed into the key are spelled to match, as is the
+	 * key's own name.  Keys without sharps or flats count as sharp.
+	 * @return true for a key with flats, such as "F" or "Gm"
+	*/
+	public boolean usesFlats() { 
+		return minor ? MINOR_FLATS[tonic] : MAJOR_FLATS[tonic];
+	}
+	
+	/** Finds how far to transpose a song in this key to reach another key.
+	 * A major song transposed to a minor key, or the reverse, goes to the
+	 * relative key of the same mode, so that the chords keep their
+	 * qualities.
+	 * @param target the key to reach
+	 * @return the number of half steps up, from 0 to 11
+	*/
+	public int getShiftTo(SongSheetKey target) {
+		int targetTonic = target.tonic;
+		if (minor != target.minor) {
+			// the relative major is three half steps above the minor
+			targetTonic += minor ? -3 : 3;
+		}
+		return ((targetTonic - tonic) % NUM_NOTES + NUM_NOTES) % NUM_NOTES;
+	}
+	
+	/** Compares the key with another key.
+	 * @param obj the object to compare
+	 * @return true if <code>obj</code> is the same key
+	*/
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SongSheetKey)) return false;
+		SongSheetKey other = (SongSheetKey) obj;
+		return tonic == other.tonic && minor == other.minor;
+	}
+	
+	/** Gets a hash code consistent with {@link #equals(Object)}.
+	 * @return the hash code
+	*/
+	public int hashCode() { return tonic * 2 + (minor ? 1 : 0); }
+	
+	/** Names the key.
+	 * @return the key's name, such as "Bb" or "F#m"
+	*/
+	public String toString() {
+		return minor ? MINOR_NAMES[tonic] : MAJOR_NAMES[tonic];
+	}
+
+}
@@ -0,0 +1,171 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+
+/** Transposes a song sheet into every key at once.
+ * Parses the song sheet a single time, classifying the lines and finding
+ * each chord, and then writes all twelve transpositions from the parsed
+ * model, without examining the text again.  The steps in the options
+ * are ignored, since every shift within the octave is produced.  Like
+ * the engine, an exporter holds no state between runs and may be shared.
+*/
+public class SongSheetKeyExporter {
+	
+	/* Constants */
+	/** Number of keys, one for each half step within an octave */
+	public static final int NUM_KEYS = 12;
+	
+	private final SongSheetEngine engine; // parses the text
+	// flag to keep the transposed chords in their columns
+	private final boolean alignChords;
+	
+	/** Constructs an exporter.
+	 * @param options the song sheet options, whose steps are ignored
+	*/
+	public SongSheetKeyExporter(SongSheetOptions options) {
+		engine = new SongSheetEngine(options);
+		alignChords = options.getAlignChords();
+	}
+	
+	/** Transposes the text into every key.
+	 * Works only on the lines within the given region if the options
+	 * call for the selected region, and on the entire text otherwise.
+	 * @param s the text to transpose
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the transposed texts along with the line counts, indexed
+	 * by the number of half steps up from the original key
+	*/
+	public SongSheetOutcome[] runAllKeys(String s, int x, int y) {
+		SongSheetModel model = engine.parse(s, x, y);
+		SongSheetOutcome[] outcomes = new SongSheetOutcome[NUM_KEYS];
+		for (int shift = 0; shift < NUM_KEYS; shift++) {
+			outcomes[shift] = model.transpose(shift, alignChords);
+		}
+		return outcomes;
+	}
+	
+	/** Transposes the text into every key, one after another in place of
+	 * the original text.
+	 * Replaces only the lines within the given region, extended to whole
+	 * lines, if the options call for the selected region, leaving the 
+	 * text around them as it was.
+	 * @param s the text to transpose
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the entire text with the region replaced by every key, 
+	 * along with the line counts for a single key
+	 * @see #writeAllKeys(String, int, int, Writer)
+	*/
+	public SongSheetOutcome runAllKeysInPlace(String s, int x, int y) {
+		SongSheetModel model = parseLines(s, x, y);
+		StringWriter out = new StringWriter(s.length() * (NUM_KEYS + 1));
+		out.append(s, 0, model.getRegionStart());
+		try {
+			writeAllKeys(model, out);
+		} catch (IOException e) {
+			// string writers don't throw I/O exceptions
+			throw new RuntimeException(e);
+		}
+		out.append(s, model.getRegionEnd(), s.length());
+		return new SongSheetOutcome(out.toString(), model.getLineCount(), 
+			model.getLineCount());
+	}
+	
+	/** Transposes the text into every key, one after another in a single
+	 * song sheet, with a heading before each key.
+	 * Writes only the lines within the given region, extended to whole 
+	 * lines, if the options call for the selected region.  The original 
+	 * key is copied as it is, with every line ending in a line break like
+	 * those of the other keys.
+	 * @param s the text to transpose
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @param out the destination for the combined song sheet
+	 * @return the line counts for a single key
+	 * @throws IOException if the writer fails
+	*/
+	public SongSheetOutcome writeAllKeys(String s, int x, int y, Writer out) 
+		throws IOException {
+		SongSheetModel model = parseLines(s, x, y);
+		writeAllKeys(model, out);
+		return new SongSheetOutcome(null, model.getLineCount(), 
+			model.getLineCount());
+	}
+	
+	/** Parses the text, with any region extended to whole lines.
+	 * @param s the text to parse
+	 * @param x the starting index of any selected region
+	 * @param y the final index of any selected region, noninclusive
+	 * @return the parsed model
+	*/
+	private SongSheetModel parseLines(String s, int x, int y) {
+		// the region starts at the beginning of its first line, as it 
+		// already ends at the end of its last one
+		return engine.parse(s, s.lastIndexOf('\n', x - 1) + 1, y);
+	}
+	
+	/** Writes the parsed region in every key, with a heading before each.
+	 * @param model the parsed text
+	 * @param out the destination for the combined song sheet
+	 * @throws IOException if the writer fails
+	*/
+	private void writeAllKeys(SongSheetModel model, Writer out) 
+		throws IOException {
+		String s = model.getText();
+		StringBuilder key = new StringBuilder(
+			model.getRegionEnd() - model.getRegionStart() + 16);
+		for (int shift = 0; shift < NUM_KEYS; shift++) {
+			if (shift > 0) out.write('\n');
+			out.write(shift == 0 ? "=== Original key ===\n"
+				: "=== Up " + shift + " half steps ===\n");
+			key.setLength(0);
+			if (shift == 0) {
+				key.append(s, model.getRegionStart(), model.getRegionEnd());
+				if (key.length() > 0 && key.charAt(key.length() - 1) != '\n') {
+					key.append('\n');
+				}
+			} else {
+				model.writeTransposedRegion(shift, alignChords, null, key);
+			}
+			out.append(key);
+		}
+	}
+
+}
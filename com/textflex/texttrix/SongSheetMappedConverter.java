@@ -0,0 +1,517 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/** Converts song sheet files by memory-mapping them rather than
+ * reading them into strings.
+ * Meant for ASCII or UTF-8 songbook archives too large to hold in 
+ * memory even once.  The input is mapped a window at a time, and line
+ * breaks are found directly among the mapped bytes, eight at a time
+ * with a {@link SongSheetByteScanner}.  Lines made only of ASCII are 
+ * classified straight from the bytes, while any other line is decoded
+ * on its own first.  Lines kept as they are never get
+ * decoded or encoded at all: each run of such lines is copied from the
+ * input file to the output channel with <code>transferTo</code>, 
+ * leaving the copy to the operating system where it can.  Only 
+ * transposed lines pass through an output buffer.  Other character 
+ * sets are refused, since their line breaks and ASCII characters can't
+ * be found among the bytes this way.  Like the engine,
+ * a converter holds no state besides its options and any metrics 
+ * listener, and may be shared among threads.
+*/
+public class SongSheetMappedConverter {
+	
+	/* Constants */
+	// bytes mapped at a time, unless a single line needs more
+	private static final int WINDOW_SIZE = 1 << 26;
+	// the most bytes ever mapped at once, which caps the line length
+	private static final int MAX_WINDOW_SIZE = 1 << 30;
+	// bytes of transposed lines buffered before being written
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	
+	private final SongSheetOptions options; // the conversion options
+	private final ChordClassifier classifier; // finds the chordal lines
+	// transposes or removes the chordal lines
+	private final ChordLineConverter chordLines;
+	// receives the metrics of each conversion; null to skip the metrics
+	private final SongSheetMetricsListener metricsListener;
+	
+	/** Constructs a converter.
+	 * The selected region option is ignored, since entire files are
+	 * always converted.
+	 * @param options the song sheet options
+	*/
+	public SongSheetMappedConverter(SongSheetOptions options) {
+		this(options, null);
+	}
+	
+	/** Constructs a converter that reports the metrics of each conversion.
+	 * Only lines that are decoded or transposed are counted in chars,
+	 * since lines copied unchanged are never decoded, but every byte is
+	 * counted.
+	 * @param options the song sheet options
+	 * @param metricsListener the listener to receive the metrics; null 
+	 * to skip the metrics
+	*/
+	public SongSheetMappedConverter(SongSheetOptions options, 
+		SongSheetMetricsListener metricsListener) {
+		this.options = options;
+		classifier = new ChordClassifier(options);
+		chordLines = options.getChordLineConverter();
+		this.metricsListener = metricsListener;
+	}
+	
+	/** Gets the options.
+	 * @return the options with which the converter was constructed
+	*/
+	public SongSheetOptions getOptions() { return options; }
+	
+	/** Checks whether files in a character set can be mapped.
+	 * @param cs the character set of the files
+	 * @return true if the character set is ASCII or UTF-8
+	*/
+	public static boolean isMappable(Charset cs) {
+		return cs.equals(UTF_8) || cs.equals(US_ASCII);
+	}
+	
+	/** Converts a UTF-8 file into another file.
+	 * @param in the ASCII or UTF-8 file to convert
+	 * @param out the file to which to write the converted text
+	 * @return the line counts
+	 * @throws IOException if either file fails
+	*/
+	public SongSheetOutcome convert(File in, File out) throws IOException {
+		return convert(in, out, UTF_8);
+	}
+	
+	/** Converts a file into another file in the same character set.
+	 * @param in the file to convert
+	 * @param out the file to which to write the converted text
+	 * @param cs the character set of both files, ASCII or UTF-8
+	 * @return the line counts
+	 * @throws IOException if either file fails, or if the input is 
+	 * malformed in the character set
+	 * @throws IllegalArgumentException if the character set can't be 
+	 * mapped
+	 * @see #isMappable(Charset)
+	*/
+	public SongSheetOutcome convert(File in, File out, Charset cs) 
+		throws IOException {
+		FileInputStream inStream = new FileInputStream(in);
+		try {
+			FileOutputStream outStream = new FileOutputStream(out);
+			try {
+				return convert(inStream.getChannel(), outStream.getChannel(), cs);
+			} finally {
+				outStream.close();
+			}
+		} finally {
+			inStream.close();
+		}
+	}
+	
+	/** Converts a UTF-8 file channel into another channel.
+	 * @param in the ASCII or UTF-8 file to convert
+	 * @param out the channel to write the converted text to
+	 * @return the line counts
+	 * @throws IOException if either channel fails, if the input is 
+	 * malformed, or if a line is too long to be mapped
+	*/
+	public SongSheetOutcome convert(FileChannel in, WritableByteChannel out)
+		throws IOException {
+		return convert(in, out, UTF_8);
+	}
+	
+	/** Converts a file channel into another channel in the same 
+	 * character set.
+	 * The output is identical to that of 
+	 * {@link SongSheetEngine#convert(ReadableByteChannel, 
+	 * WritableByteChannel, Charset)} for the same file, including a 
+	 * failure on malformed input.  Neither channel is closed, and the 
+	 * input is read from its start regardless of its position.
+	 * @param in the file to convert
+	 * @param out the channel to write the converted text to
+	 * @param cs the character set of both the file and the output, 
+	 * ASCII or UTF-8
+	 * @return the line counts
+	 * @throws IOException if either channel fails, if the input is 
+	 * malformed in the character set, or if a line is too long to be 
+	 * mapped
+	 * @throws IllegalArgumentException if the character set can't be 
+	 * mapped
+	 * @see #isMappable(Charset)
+	*/
+	public SongSheetOutcome convert(FileChannel in, WritableByteChannel out,
+		Charset cs) throws IOException {
+		if (!isMappable(cs)) {
+			throw new IllegalArgumentException(
+				"Unable to map files in " + cs.name());
+		}
+		Conversion conversion = new Conversion(in, out, cs);
+		long size = in.size();
+		long pos = 0; // file position of the current window
+		int window = WINDOW_SIZE;
+		SongSheetMetrics metrics = conversion.metrics;
+		while (pos < size) {
+			int length = (int) Math.min(window, size - pos);
+			long time = (metrics == null) ? 0 : System.nanoTime();
+			MappedByteBuffer buf = 
+				in.map(FileChannel.MapMode.READ_ONLY, pos, length);
+			if (metrics != null) {
+				metrics.addNanos(SongSheetMetrics.READ, System.nanoTime() - time);
+			}
+			int lineStart = conversion.convertLines(buf, pos, length);
+			if (pos + length == size) {
+				// the last line may not have a line break
+				if (lineStart < length) {
+					conversion.convertLine(buf, pos, lineStart, length, false, 
+						SongSheetByteScanner.isAscii(buf, lineStart, length));
+				}
+				pos = size;
+			} else if (lineStart == 0) {
+				// maps a larger window for a line that fills the whole window
+				if (window >= MAX_WINDOW_SIZE) {
+					throw new IOException("Line too long at byte " + pos);
+				}
+				window *= 2;
+			} else {
+				// starts the next window at the unfinished line
+				pos += lineStart;
+				window = WINDOW_SIZE;
+			}
+		}
+		conversion.flush();
+		if (metrics != null) metrics.addBytes(size, conversion.bytesOut);
+		return conversion.finish();
+	}
+	
+	/** The working storage and counts of a single conversion.
+	 * Used by only one thread at a time.
+	*/
+	private class Conversion {
+		private FileChannel in = null; // the file to convert
+		private WritableByteChannel out = null; // the destination
+		// buffer for transposed lines and added line breaks
+		private ByteBuffer outBuf = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+		// file positions of the run of unchanged lines waiting to be copied,
+		// line breaks included; equal if there is no such run
+		private long runStart = 0;
+		private long runEnd = 0;
+		// views of the current line, as chars
+		private AsciiSequence ascii = new AsciiSequence();
+		private CharBuffer decoded = CharBuffer.allocate(256);
+		// report malformed input, as the engine's readers do
+		private CharsetDecoder decoder = null;
+		private CharsetEncoder encoder = null;
+		// reusable storage for each converted chordal line
+		private StringBuilder converted = new StringBuilder();
+		private long linesRead = 0; // num of lines read
+		private long linesChanged = 0; // num of lines kept or transposed
+		private long bytesOut = 0; // num of bytes written
+		// counts and timings, or null if not reporting metrics
+		private SongSheetMetrics metrics = 
+			(metricsListener == null) ? null : new SongSheetMetrics();
+		
+		/** Constructs a conversion.
+		 * @param in the file to convert
+		 * @param out the destination
+		 * @param cs the character set of the file and the destination
+		*/
+		public Conversion(FileChannel in, WritableByteChannel out, Charset cs) {
+			this.in = in;
+			this.out = out;
+			decoder = cs.newDecoder();
+			encoder = cs.newEncoder();
+		}
+		
+		/** Converts every line in a window that ends with a line break.
+		 * @param buf the mapped window
+		 * @param base the file position of the window
+		 * @param length the number of bytes in the window
+		 * @return the index in the window of the first unfinished line;
+		 * <code>length</code> if every line is finished
+		 * @throws IOException if either channel fails
+		*/
+		public int convertLines(ByteBuffer buf, long base, int length) 
+			throws IOException {
+			int lineStart = 0;
+			int lineBreak = 0;
+			while ((lineBreak = SongSheetByteScanner.indexOf(buf, lineStart, 
+				length, (byte) '\n')) != -1) {
+				convertLine(buf, base, lineStart, lineBreak, true, 
+					SongSheetByteScanner.isAscii(buf, lineStart, lineBreak));
+				lineStart = lineBreak + 1;
+			}
+			return lineStart;
+		}
+		
+		/** Converts a single line.
+		 * @param buf the mapped window containing the line
+		 * @param base the file position of the window
+		 * @param start the index of the line in the window
+		 * @param end the index of the end of the line in the window,
+		 * line break non-inclusive
+		 * @param hasBreak true if a line break follows the line
+		 * @param isAscii true if the line is all ASCII
+		 * @throws IOException if either channel fails
+		*/
+		public void convertLine(ByteBuffer buf, long base, int start, int end,
+			boolean hasBreak, boolean isAscii) throws IOException {
+			linesRead++;
+			long time = (metrics == null) ? 0 : System.nanoTime();
+			CharSequence seq = null; // the line as chars
+			int seqStart = 0;
+			int seqEnd = 0;
+			if (isAscii) {
+				seq = ascii.wrap(buf);
+				seqStart = start;
+				seqEnd = end;
+			} else {
+				seq = decode(buf, start, end);
+				seqEnd = decoded.remaining();
+				if (metrics != null) metrics.addChars(seqEnd, 0);
+			}
+			
+			boolean chordal = isAscii 
+				? classifier.isChordLine(buf, seq, seqStart, seqEnd)
+				: classifier.isChordLine(seq, seqStart, seqEnd);
+			if (metrics != null) {
+				long now = System.nanoTime();
+				metrics.addNanos(SongSheetMetrics.CLASSIFY, now - time);
+				metrics.addLine(chordal);
+				if (chordal && options.getTranspose()) {
+					metrics.addChords(seq, seqStart, seqEnd, 
+						options.getChordGrammar());
+				}
+			}
+			if (!chordal) {
+				// copies the line without decoding it
+				keep(base + start, base + end + (hasBreak ? 1 : 0));
+				if (!hasBreak) put('\n');
+			} else {
+				if (metrics != null) time = System.nanoTime();
+				converted.setLength(0);
+				boolean kept = 
+					chordLines.convertChordLine(seq, seqStart, seqEnd, converted);
+				if (metrics != null) {
+					metrics.addNanos(SongSheetMetrics.CONVERT, System.nanoTime() - time);
+					if (isAscii) metrics.addChars(seqEnd - seqStart, 0);
+					if (kept) metrics.addChars(0, converted.length() + 1);
+				}
+				if (kept) {
+					if (isAscii) {
+						putAscii(converted);
+					} else {
+						putEncoded(converted);
+					}
+					put('\n');
+				} else {
+					return;
+				}
+			}
+			linesChanged++;
+		}
+		
+		/** Decodes a line that isn't all ASCII.
+		 * @param buf the mapped window containing the line
+		 * @param start the index of the line in the window
+		 * @param end the index of the end of the line in the window
+		 * @return the decoded line, from its position to its limit
+		 * @throws CharacterCodingException if the line is malformed
+		*/
+		private CharBuffer decode(ByteBuffer buf, int start, int end) 
+			throws CharacterCodingException {
+			ByteBuffer line = buf.duplicate();
+			line.limit(end).position(start);
+			int maxChars = end - start;
+			if (decoded.capacity() < maxChars) {
+				decoded = CharBuffer.allocate(maxChars * 2);
+			}
+			decoded.clear();
+			decoder.reset();
+			CoderResult result = decoder.decode(line, decoded, true);
+			if (result.isError()) result.throwException();
+			result = decoder.flush(decoded);
+			if (result.isError()) result.throwException();
+			decoded.flip();
+			return decoded;
+		}
+		
+		/** Adds a range of unchanged lines to the run waiting to be copied.
+		 * Adjacent ranges are merged into a single run.
+		 * @param start the file position of the range
+		 * @param end the file position of the end of the range
+		 * @throws IOException if either channel fails
+		*/
+		private void keep(long start, long end) throws IOException {
+			if (start != runEnd || runStart == runEnd) {
+				flush();
+				runStart = start;
+			}
+			runEnd = end;
+		}
+		
+		/** Adds a byte to the output buffer, after any waiting run.
+		 * @param b the byte to add
+		 * @throws IOException if either channel fails
+		*/
+		private void put(char b) throws IOException {
+			flushRun();
+			if (!outBuf.hasRemaining()) flushBuffer();
+			outBuf.put((byte) b);
+		}
+		
+		/** Adds an ASCII line to the output buffer.
+		 * @param s the line, of only ASCII characters
+		 * @throws IOException if either channel fails
+		*/
+		private void putAscii(CharSequence s) throws IOException {
+			flushRun();
+			for (int i = 0; i < s.length(); i++) {
+				if (!outBuf.hasRemaining()) flushBuffer();
+				outBuf.put((byte) s.charAt(i));
+			}
+		}
+		
+		/** Adds a line to the output buffer, encoded in the file's 
+		 * character set.
+		 * @param s the line
+		 * @throws IOException if either channel fails, or if the line 
+		 * can't be encoded
+		*/
+		private void putEncoded(CharSequence s) throws IOException {
+			flushRun();
+			CharBuffer chars = CharBuffer.wrap(s);
+			encoder.reset();
+			CoderResult result = null;
+			while ((result = encoder.encode(chars, outBuf, true)).isOverflow()) {
+				flushBuffer();
+			}
+			if (result.isError()) result.throwException();
+			while ((result = encoder.flush(outBuf)).isOverflow()) flushBuffer();
+			if (result.isError()) result.throwException();
+		}
+		
+		/** Writes everything still waiting, in order.
+		 * @throws IOException if either channel fails
+		*/
+		public void flush() throws IOException {
+			flushBuffer();
+			flushRun();
+		}
+		
+		/** Copies the waiting run of unchanged lines to the output,
+		 * after anything in the output buffer.
+		 * @throws IOException if either channel fails
+		*/
+		private void flushRun() throws IOException {
+			if (runStart == runEnd) return;
+			flushBuffer();
+			bytesOut += runEnd - runStart;
+			long time = (metrics == null) ? 0 : System.nanoTime();
+			while (runStart < runEnd) {
+				long copied = in.transferTo(runStart, runEnd - runStart, out);
+				if (copied <= 0) {
+					throw new IOException("Unable to copy from byte " + runStart);
+				}
+				runStart += copied;
+			}
+			if (metrics != null) {
+				metrics.addNanos(SongSheetMetrics.WRITE, System.nanoTime() - time);
+			}
+			runStart = runEnd = 0;
+		}
+		
+		/** Writes out the output buffer.
+		 * @throws IOException if the output channel fails
+		*/
+		private void flushBuffer() throws IOException {
+			outBuf.flip();
+			bytesOut += outBuf.remaining();
+			long time = (metrics == null) ? 0 : System.nanoTime();
+			while (outBuf.hasRemaining()) out.write(outBuf);
+			if (metrics != null) {
+				metrics.addNanos(SongSheetMetrics.WRITE, System.nanoTime() - time);
+			}
+			outBuf.clear();
+		}
+		
+		/** Finishes the conversion, reporting its metrics to the listener
+		 * if any.
+		 * @return the line counts, without any text
+		*/
+		public SongSheetOutcome finish() {
+			if (metrics != null) metricsListener.conversionFinished(metrics);
+			return new SongSheetOutcome(null, linesRead, linesChanged);
+		}
+	}
+	
+	/** A view of ASCII bytes as chars, without copying them.
+	*/
+	private static class AsciiSequence implements CharSequence {
+		private ByteBuffer buf = null; // the bytes to view
+		
+		/** Views another buffer.
+		 * @param buf the bytes to view, indexed from the buffer's start
+		 * @return this view
+		*/
+		public AsciiSequence wrap(ByteBuffer buf) {
+			this.buf = buf;
+			return this;
+		}
+		
+		public char charAt(int index) { return (char) (buf.get(index) & 0xff); }
+		
+		public int length() { return buf.limit(); }
+		
+		public CharSequence subSequence(int start, int end) {
+			StringBuilder sub = new StringBuilder(end - start);
+			for (int i = start; i < end; i++) sub.append(charAt(i));
+			return sub.toString();
+		}
+		
+		public String toString() { return subSequence(0, length()).toString(); }
+	}
+
+}
@@ -0,0 +1,249 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+/** The counts and timings of song sheet conversions.
+ * Filled in by an engine or converter during a single conversion and
+ * then handed to its {@link SongSheetMetricsListener}, which may total
+ * the metrics of many conversions with {@link #add(SongSheetMetrics)}.
+ * Characters are counted by every conversion, while bytes are only 
+ * counted by conversions that read and write bytes themselves.  Metrics
+ * aren't thread-safe.
+*/
+public class SongSheetMetrics {
+	
+	/* Phases */
+	/** Phase spent waiting on the input */
+	public static final int READ = 0;
+	/** Phase spent finding the chordal lines */
+	public static final int CLASSIFY = 1;
+	/** Phase spent transposing or removing chordal lines */
+	public static final int CONVERT = 2;
+	/** Phase spent writing the output */
+	public static final int WRITE = 3;
+	/** Number of phases */
+	public static final int NUM_PHASES = 4;
+	private static final String[] PHASE_NAMES = {
+		"read", "classify", "convert", "write"
+	};
+	
+	/* Counts */
+	private long conversions = 0; // num of conversions
+	private long linesScanned = 0; // num of lines read
+	private long chordLines = 0; // num of chordal lines
+	private long chordsTransposed = 0; // num of chords transposed
+	// num of chords whose family names couldn't be transposed
+	private long unknownRoots = 0;
+	private long charsIn = 0; // num of chars read
+	private long charsOut = 0; // num of chars written
+	private long bytesIn = 0; // num of bytes read
+	private long bytesOut = 0; // num of bytes written
+	private long[] nanos = new long[NUM_PHASES]; // time spent in each phase
+	
+	/** Constructs empty metrics for a single conversion.
+	*/
+	public SongSheetMetrics() {
+		this(1);
+	}
+	
+	/** Constructs empty metrics.
+	 * @param conversions the number of conversions to start from
+	*/
+	private SongSheetMetrics(long conversions) {
+		this.conversions = conversions;
+	}
+	
+	/** Constructs empty metrics for totalling those of other conversions.
+	 * @return the metrics, counting no conversions so far
+	*/
+	public static SongSheetMetrics createTotals() {
+		return new SongSheetMetrics(0);
+	}
+	
+	/** Adds the metrics of another conversion to these metrics.
+	 * @param other the metrics to add
+	*/
+	public void add(SongSheetMetrics other) {
+		conversions += other.conversions;
+		linesScanned += other.linesScanned;
+		chordLines += other.chordLines;
+		chordsTransposed += other.chordsTransposed;
+		unknownRoots += other.unknownRoots;
+		charsIn += other.charsIn;
+		charsOut += other.charsOut;
+		bytesIn += other.bytesIn;
+		bytesOut += other.bytesOut;
+		for (int i = 0; i < NUM_PHASES; i++) nanos[i] += other.nanos[i];
+	}
+	
+	/** Counts a line read.
+	 * @param chordal true if the line is chordal
+	*/
+	void addLine(boolean chordal) {
+		linesScanned++;
+		if (chordal) chordLines++;
+	}
+	
+	/** Counts the chords of a chordal line that is being transposed, 
+	 * finding them just as 
+	 * {@link ChordTransposer#transposeLine(CharSequence, int, int, 
+	 * StringBuilder)} does.
+	 * @param s the text containing the line
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param grammar the grammar of the chords, as given to the 
+	 * transposer; null to take every word
+	*/
+	void addChords(CharSequence s, int start, int end, ChordGrammar grammar) {
+		int n = ChordTransposer.findRoot(s, start, end, true, grammar);
+		while (n != -1) {
+			int accidental = ChordTransposer.accidentalAt(s, n + 1, end);
+			chordsTransposed++;
+			if (ChordTransposer.toSemitone(s.charAt(n), accidental) == -1) {
+				unknownRoots++;
+			}
+			n += (accidental == ChordTransposer.NATURAL) ? 1 : 2;
+			n = ChordTransposer.findRoot(s, n, end, false, grammar);
+		}
+	}
+	
+	/** Counts chars read and written.
+	 * @param in the number of chars read
+	 * @param out the number of chars written
+	*/
+	void addChars(long in, long out) {
+		charsIn += in;
+		charsOut += out;
+	}
+	
+	/** Counts bytes read and written.
+	 * @param in the number of bytes read
+	 * @param out the number of bytes written
+	*/
+	void addBytes(long in, long out) {
+		bytesIn += in;
+		bytesOut += out;
+	}
+	
+	/** Adds time spent in a phase.
+	 * @param phase the phase, such as {@link #CLASSIFY}
+	 * @param time the nanoseconds spent
+	*/
+	void addNanos(int phase, long time) {
+		nanos[phase] += time;
+	}
+	
+	/** Gets the number of conversions.
+	 * @return 1 for a single conversion, or the number of conversions 
+	 * totalled
+	*/
+	public long getConversions() { return conversions; }
+	
+	/** Gets the number of lines scanned.
+	 * @return the number of lines read, whether kept, transposed, or removed
+	*/
+	public long getLinesScanned() { return linesScanned; }
+	
+	/** Gets the number of chordal lines.
+	 * @return the number of lines found to be chordal
+	*/
+	public long getChordLines() { return chordLines; }
+	
+	/** Gets the number of chords transposed.
+	 * @return the number of chords transposed, including those with 
+	 * unknown family names; 0 when removing chords
+	*/
+	public long getChordsTransposed() { return chordsTransposed; }
+	
+	/** Gets the number of chords whose family names couldn't be transposed.
+	 * @return the number of chords replaced by 
+	 * {@link ChordTransposer#UNKNOWN}
+	*/
+	public long getUnknownRoots() { return unknownRoots; }
+	
+	/** Gets the number of chars read.
+	 * @return the number of chars read
+	*/
+	public long getCharsIn() { return charsIn; }
+	
+	/** Gets the number of chars written.
+	 * @return the number of chars written
+	*/
+	public long getCharsOut() { return charsOut; }
+	
+	/** Gets the number of bytes read.
+	 * @return the number of bytes read; 0 for conversions of chars
+	*/
+	public long getBytesIn() { return bytesIn; }
+	
+	/** Gets the number of bytes written.
+	 * @return the number of bytes written; 0 for conversions of chars
+	*/
+	public long getBytesOut() { return bytesOut; }
+	
+	/** Gets the time spent in a phase.
+	 * @param phase the phase, such as {@link #CLASSIFY}
+	 * @return the nanoseconds spent
+	*/
+	public long getNanos(int phase) { return nanos[phase]; }
+	
+	/** Gets the name of a phase.
+	 * @param phase the phase, such as {@link #CLASSIFY}
+	 * @return the name, such as "classify"
+	*/
+	public static String getPhaseName(int phase) { return PHASE_NAMES[phase]; }
+	
+	/** Summarizes the metrics on a single line.
+	 * @return the counts, followed by the milliseconds spent in each phase
+	*/
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(conversions).append(" conversions, ")
+			.append(linesScanned).append(" lines, ")
+			.append(chordLines).append(" chord lines, ")
+			.append(chordsTransposed).append(" chords transposed, ")
+			.append(unknownRoots).append(" unknown roots, ")
+			.append(charsIn).append("/").append(charsOut).append(" chars in/out, ")
+			.append(bytesIn).append("/").append(bytesOut).append(" bytes in/out;");
+		for (int i = 0; i < NUM_PHASES; i++) {
+			s.append(' ').append(PHASE_NAMES[i]).append(' ')
+				.append(nanos[i] / 1000000).append(" ms");
+		}
+		return s.toString();
+	}
+
+}
@@ -0,0 +1,594 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.util.*;
+
+/** A song sheet parsed into its lines and chords.
+ * Records where each line starts and ends, whether it is chordal, and
+ * where each chord in a chordal line lies, along with the chord's family
+ * name, accidental, and suffix.  Every position is kept in arrays of ints
+ * rather than in an object per line or chord, so that even a whole 
+ * songbook parses into a handful of arrays.  Each chord is packed into a
+ * single int holding its family name as the number of half steps above 
+ * "A", its accidental, and the id of its suffix in a table of the
+ * distinct suffixes, so that transposing a chord takes only arithmetic
+ * and each suffix is stored once however often it recurs.  Once parsed, a song sheet can 
+ * be transposed into any key, stripped of its chords, or counted without
+ * examining the text again.  Models are built by 
+ * {@link SongSheetEngine#parse(String, int, int)} and can't be changed
+ * afterward.
+*/
+public class SongSheetModel {
+	
+	/* Constants */
+	/** Kind of line holding lyrics or anything else kept as it is */
+	public static final int LYRIC_LINE = 0;
+	/** Kind of line holding chords */
+	public static final int CHORD_LINE = 1;
+	// family name code for chords that can't be transposed
+	private static final int UNKNOWN_ROOT = 15;
+	private static final int ROOT_BITS = 4; // bits for the family name
+	private static final int ACCIDENTAL_BITS = 2; // bits for the accidental
+	private static final int ROOT_WEIGHT = 2; // weight of each chord's root
+	
+	private String s = null; // the text
+	private int regionStart = 0; // start of the parsed region
+	private int regionEnd = 0; // end of the parsed region
+	// grammar of the chords on chordal lines; null to take every word
+	private ChordGrammar grammar = null;
+	
+	/* Lines */
+	private int lineCount = 0; // num of lines
+	private int[] lineStarts = new int[64]; // start of each line
+	private int[] lineEnds = new int[64]; // end of each line, without break
+	private int[] lineKinds = new int[64]; // LYRIC_LINE or CHORD_LINE
+	// index of each line's first chord, followed by the num of chords
+	private int[] lineChords = new int[65];
+	private int chordLineCount = 0; // num of chordal lines
+	
+	/* Chords */
+	private int chordCount = 0; // num of chords
+	private int[] chordStarts = new int[64]; // start of each chord
+	private int[] chordLengths = new int[64]; // length of each chord
+	// each chord's half steps above "A", or UNKNOWN_ROOT, followed by its
+	// accidental and then its suffix id in the higher bits
+	private int[] chordCodes = new int[64];
+	private SuffixTable suffixes = new SuffixTable(); // distinct suffixes
+	// weight of the notes in the chords, by half steps above "A"
+	private int[] pitchClasses = new int[12];
+	
+	/** Constructs an empty model, to which the engine adds the lines.
+	 * @param s the text
+	 * @param regionStart the start of the region to parse
+	 * @param regionEnd the end of the region to parse
+	*/
+	SongSheetModel(String s, int regionStart, int regionEnd) {
+		this(s, regionStart, regionEnd, null);
+	}
+	
+	/** Constructs an empty model whose chords must match a grammar.
+	 * @param s the text
+	 * @param regionStart the start of the region to parse
+	 * @param regionEnd the end of the region to parse
+	 * @param grammar the grammar of the chords on chordal lines, as 
+	 * given to the transposer; null to take every word
+	*/
+	SongSheetModel(String s, int regionStart, int regionEnd, 
+		ChordGrammar grammar) {
+		this.s = s;
+		this.regionStart = regionStart;
+		this.regionEnd = regionEnd;
+		this.grammar = grammar;
+	}
+	
+	/** Adds a line, finding the chords of a chordal line just as 
+	 * {@link ChordTransposer#transposeLine(CharSequence, int, int, 
+	 * StringBuilder)} would.
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	 * @param chordal true if the line is chordal
+	*/
+	void addLine(int start, int end, boolean chordal) {
+		if (lineCount == lineStarts.length) {
+			int capacity = lineCount * 2;
+			lineStarts = Arrays.copyOf(lineStarts, capacity);
+			lineEnds = Arrays.copyOf(lineEnds, capacity);
+			lineKinds = Arrays.copyOf(lineKinds, capacity);
+			lineChords = Arrays.copyOf(lineChords, capacity + 1);
+		}
+		lineStarts[lineCount] = start;
+		lineEnds[lineCount] = end;
+		lineKinds[lineCount] = chordal ? CHORD_LINE : LYRIC_LINE;
+		if (chordal) {
+			chordLineCount++;
+			addChords(start, end);
+		}
+		lineChords[++lineCount] = chordCount;
+	}
+	
+	/** Adds the chords of a chordal line.
+	 * Each chord starts at a family name found just as the transposer 
+	 * finds them, which may be followed by a sharp or flat sign, and the
+	 * chord continues up to the next blankspace, "/", or "(".
+	 * @param start the starting index of the line
+	 * @param end the ending index of the line, line break non-inclusive
+	*/
+	private void addChords(int start, int end) {
+		int n = start;
+		boolean lineStart = true;
+		while ((n = ChordTransposer.findRoot(s, n, end, lineStart, grammar)) 
+			!= -1) {
+			lineStart = false;
+			char c = s.charAt(n);
+			int accidental = ChordTransposer.accidentalAt(s, n + 1, end);
+			int root = ChordTransposer.toSemitone(c, accidental);
+			if (root == -1) root = UNKNOWN_ROOT;
+			int chordStart = n;
+			n += (accidental == ChordTransposer.NATURAL) ? 1 : 2;
+			// the suffix runs up to the next separator
+			int suffixStart = n;
+			for (; n < end; n++) {
+				c = s.charAt(n);
+				if (ChordClassifier.isBlankspace(c) || c == '/' || c == '(') break;
+			}
+			int suffix = suffixes.intern(s, suffixStart, n);
+			if (chordCount == chordStarts.length) {
+				int capacity = chordCount * 2;
+				chordStarts = Arrays.copyOf(chordStarts, capacity);
+				chordLengths = Arrays.copyOf(chordLengths, capacity);
+				chordCodes = Arrays.copyOf(chordCodes, capacity);
+			}
+			chordStarts[chordCount] = chordStart;
+			chordLengths[chordCount] = n - chordStart;
+			chordCodes[chordCount++] = 
+				(suffix << ACCIDENTAL_BITS | accidental) << ROOT_BITS | root;
+			// tallies the chord's root, third, and fifth toward the key
+			if (root != UNKNOWN_ROOT) {
+				pitchClasses[root] += ROOT_WEIGHT;
+				int third = suffixes.thirds[suffix];
+				if (third != 0) pitchClasses[(root + third) % 12]++;
+				pitchClasses[(root + suffixes.fifths[suffix]) % 12]++;
+			}
+		}
+	}
+	
+	/** Gets the text.
+	 * @return the text that was parsed
+	*/
+	public String getText() { return s; }
+	
+	/** Gets the start of the parsed region.
+	 * @return the starting index of the region
+	*/
+	public int getRegionStart() { return regionStart; }
+	
+	/** Gets the end of the parsed region.
+	 * @return the ending index of the region, noninclusive
+	*/
+	public int getRegionEnd() { return regionEnd; }
+	
+	/** Gets the number of lines.
+	 * @return the number of lines in the region
+	*/
+	public int getLineCount() { return lineCount; }
+	
+	/** Gets the start of a line.
+	 * @param line the index of the line
+	 * @return the starting index of the line in the text
+	*/
+	public int getLineStart(int line) { return lineStarts[line]; }
+	
+	/** Gets the end of a line.
+	 * @param line the index of the line
+	 * @return the ending index of the line, line break non-inclusive
+	*/
+	public int getLineEnd(int line) { return lineEnds[line]; }
+	
+	/** Gets the kind of a line.
+	 * @param line the index of the line
+	 * @return {@link #LYRIC_LINE} or {@link #CHORD_LINE}
+	*/
+	public int getLineKind(int line) { return lineKinds[line]; }
+	
+	/** Gets the first chord of a line.
+	 * @param line the index of the line
+	 * @return the index of the line's first chord, or of the next line's
+	 * first chord if the line has none
+	*/
+	public int getFirstChord(int line) { return lineChords[line]; }
+	
+	/** Gets the number of chords in a line.
+	 * @param line the index of the line
+	 * @return the number of chords, 0 for lyrical lines
+	*/
+	public int getChordCount(int line) { 
+		return lineChords[line + 1] - lineChords[line];
+	}
+	
+	/** Gets the number of chordal lines.
+	 * @return the number of chordal lines
+	*/
+	public int getChordLineCount() { return chordLineCount; }
+	
+	/** Gets the number of chords.
+	 * @return the number of chords in all of the lines
+	*/
+	public int getChordCount() { return chordCount; }
+	
+	/** Gets the start of a chord.
+	 * @param chord the index of the chord
+	 * @return the starting index of the chord in the text
+	*/
+	public int getChordStart(int chord) { return chordStarts[chord]; }
+	
+	/** Gets the end of a chord.
+	 * @param chord the index of the chord
+	 * @return the ending index of the chord, noninclusive
+	*/
+	public int getChordEnd(int chord) { 
+		return chordStarts[chord] + chordLengths[chord];
+	}
+	
+	/** Gets the family name of a chord, including its sharp or flat.
+	 * @param chord the index of the chord
+	 * @return the number of half steps above "A", from 0 to 11; -1 if the
+	 * chord can't be transposed
+	 * @see ChordTransposer#toSemitone(char, int)
+	*/
+	public int getChordSemitone(int chord) {
+		int root = chordCodes[chord] & (1 << ROOT_BITS) - 1;
+		return (root == UNKNOWN_ROOT) ? -1 : root;
+	}
+	
+	/** Gets the accidental of a chord.
+	 * @param chord the index of the chord
+	 * @return {@link ChordTransposer#NATURAL}, {@link ChordTransposer#SHARP},
+	 * or {@link ChordTransposer#FLAT}
+	*/
+	public int getChordAccidental(int chord) {
+		return chordCodes[chord] >> ROOT_BITS & (1 << ACCIDENTAL_BITS) - 1;
+	}
+	
+	/** Gets the suffix id of a chord.
+	 * @param chord the index of the chord
+	 * @return the id of the chord's suffix, shared by every chord with
+	 * the same suffix
+	 * @see #getSuffix(int)
+	*/
+	public int getSuffixId(int chord) {
+		return chordCodes[chord] >>> ROOT_BITS + ACCIDENTAL_BITS;
+	}
+	
+	/** Gets a suffix by its id.
+	 * @param id the suffix id
+	 * @return the suffix, which is empty for chords without one
+	*/
+	public String getSuffix(int id) { return suffixes.get(id); }
+	
+	/** Gets the number of distinct suffixes.
+	 * @return the number of suffix ids
+	*/
+	public int getSuffixCount() { return suffixes.count; }
+	
+	/** Gets the start of a chord's suffix.
+	 * @param chord the index of the chord
+	 * @return the starting index of the suffix, following the family name
+	 * and any sharp or flat
+	*/
+	public int getSuffixStart(int chord) {
+		return chordStarts[chord] 
+			+ (getChordAccidental(chord) == ChordTransposer.NATURAL ? 1 : 2);
+	}
+	
+	/** Gets the number of chords whose family name can't be transposed.
+	 * @return the number of chords with unknown family names
+	*/
+	public int getUnknownChordCount() {
+		int unknown = 0;
+		for (int i = 0; i < chordCount; i++) {
+			if ((chordCodes[i] & (1 << ROOT_BITS) - 1) == UNKNOWN_ROOT) unknown++;
+		}
+		return unknown;
+	}
+	
+	/** Gets the weight of each note heard in the chords.
+	 * Each chord whose family name is known counts twice toward its root
+	 * and once each toward its third and fifth, as implied by its suffix.
+	 * @return a copy of the weights, by half steps above "A"
+	*/
+	public int[] getPitchClassHistogram() { return pitchClasses.clone(); }
+	
+	/** Estimates the key of the region from its chords.
+	 * @return the estimated key; null if the region has no chords with 
+	 * known family names
+	 * @see SongSheetKey#estimate(int[])
+	*/
+	public SongSheetKey estimateKey() {
+		return SongSheetKey.estimate(pitchClasses);
+	}
+	
+	/** Transposes the chords in the region.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @return the entire text with the region transposed, along with the
+	 * line counts
+	*/
+	public SongSheetOutcome transpose(int halfSteps) {
+		return transpose(halfSteps, false);
+	}
+	
+	/** Transposes the chords in the region, optionally keeping them aligned.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @param alignChords true to keep the chords in their columns
+	 * @return the entire text with the region transposed, along with the
+	 * line counts
+	*/
+	public SongSheetOutcome transpose(int halfSteps, boolean alignChords) {
+		return transpose(halfSteps, alignChords, null);
+	}
+	
+	/** Transposes the chords in the region into a key, spelling every
+	 * chord with sharps or flats as the key's signature does.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @param alignChords true to keep the chords in their columns
+	 * @param key the key reached; null to spell each chord as it was 
+	 * written
+	 * @return the entire text with the region transposed, along with the
+	 * line counts
+	 * @see SongSheetKey#getShiftTo(SongSheetKey)
+	*/
+	public SongSheetOutcome transpose(int halfSteps, boolean alignChords, 
+		SongSheetKey key) {
+		StringBuilder out = new StringBuilder(s.length() + 16);
+		out.append(s, 0, regionStart);
+		writeTransposedRegion(halfSteps, alignChords, key, out);
+		out.append(s, regionEnd, s.length());
+		return new SongSheetOutcome(out.toString(), lineCount, lineCount);
+	}
+	
+	/** Removes the chordal lines in the region.
+	 * @return the entire text with the region's chordal lines removed,
+	 * along with the line counts
+	*/
+	public SongSheetOutcome strip() {
+		StringBuilder out = new StringBuilder(s.length());
+		writeStripped(out);
+		return new SongSheetOutcome(out.toString(), lineCount, 
+			lineCount - chordLineCount);
+	}
+	
+	/** Writes the entire text with the chords in the region transposed.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @param out the builder to which to append the text
+	*/
+	public void writeTransposed(int halfSteps, StringBuilder out) {
+		writeTransposed(halfSteps, false, out);
+	}
+	
+	/** Writes the entire text with the chords in the region transposed,
+	 * optionally keeping them aligned.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @param alignChords true to keep the chords in their columns
+	 * @param out the builder to which to append the text
+	 * @see ChordTransposer#transposeLine(CharSequence, int, int, StringBuilder)
+	*/
+	public void writeTransposed(int halfSteps, boolean alignChords, 
+		StringBuilder out) {
+		out.append(s, 0, regionStart);
+		writeTransposedRegion(halfSteps, alignChords, null, out);
+		out.append(s, regionEnd, s.length());
+	}
+	
+	/** Writes only the lines in the region, with their chords transposed.
+	 * Every line ends with a line break, including the last one.
+	 * @param halfSteps the number of half steps up, from 0 to 11
+	 * @param alignChords true to keep the chords in their columns
+	 * @param key the key reached, whose signature spells the chords; 
+	 * null to spell each chord as it was written
+	 * @param out the builder to which to append the lines
+	*/
+	public void writeTransposedRegion(int halfSteps, boolean alignChords, 
+		SongSheetKey key, StringBuilder out) {
+		for (int i = 0; i < lineCount; i++) {
+			int end = lineEnds[i];
+			int n = lineStarts[i]; // end of the text written so far
+			int drift = 0; // num of columns the output runs ahead of the text
+			for (int chord = lineChords[i]; chord < lineChords[i + 1]; chord++) {
+				int code = chordCodes[chord];
+				int root = code & (1 << ROOT_BITS) - 1;
+				int accidental = code >> ROOT_BITS & (1 << ACCIDENTAL_BITS) - 1;
+				if (alignChords) {
+					drift = ChordTransposer.appendAligned(s, n, chordStarts[chord], 
+						end, drift, true, out);
+				} else {
+					out.append(s, n, chordStarts[chord]);
+				}
+				// transposes within the key's accidentals if given, and 
+				// otherwise within the flats for flattened chords and the 
+				// sharps for the rest
+				boolean flat = (key == null) 
+					? accidental == ChordTransposer.FLAT : key.usesFlats();
+				String name = (root == UNKNOWN_ROOT) ? ChordTransposer.UNKNOWN
+					: ChordTransposer.toChordName((root + halfSteps) % 12, flat);
+				out.append(name);
+				int nameLength = (accidental == ChordTransposer.NATURAL) ? 1 : 2;
+				drift += name.length() - nameLength;
+				n = chordStarts[chord] + nameLength;
+			}
+			if (alignChords) {
+				ChordTransposer.appendAligned(s, n, end, end, drift, false, out);
+			} else {
+				out.append(s, n, end);
+			}
+			out.append('\n');
+		}
+	}
+	
+	/** Writes the entire text with the chordal lines in the region removed.
+	 * @param out the builder to which to append the text
+	*/
+	public void writeStripped(StringBuilder out) {
+		out.append(s, 0, regionStart);
+		for (int i = 0; i < lineCount; i++) {
+			if (lineKinds[i] == LYRIC_LINE) {
+				out.append(s, lineStarts[i], lineEnds[i]).append('\n');
+			}
+		}
+		out.append(s, regionEnd, s.length());
+	}
+	
+	/** The distinct suffixes of a model's chords, each stored once and
+	 * identified by the order in which it was first found.
+	 * Looks up suffixes in an open-addressed hash table directly from the
+	 * text, so that only new suffixes are copied into strings.  The 
+	 * intervals each suffix implies are worked out once, when it is added.
+	*/
+	private static class SuffixTable {
+		private String[] suffixes = new String[16]; // suffixes by id
+		private int[] hashes = new int[16]; // hash code of each suffix
+		// half steps from the root to the third, or 0 for none, by id
+		private int[] thirds = new int[16];
+		private int[] fifths = new int[16]; // half steps to the fifth, by id
+		// suffix id plus one in each slot, or 0 for an empty slot
+		private int[] slots = new int[32];
+		private int count = 0; // num of suffixes
+		
+		/** Gets a suffix by id.
+		 * @param id the suffix id
+		 * @return the suffix
+		*/
+		public String get(int id) { return suffixes[id]; }
+		
+		/** Finds the id of a suffix, adding the suffix if not yet found.
+		 * @param s the text containing the suffix
+		 * @param start the starting index of the suffix
+		 * @param end the ending index of the suffix, noninclusive
+		 * @return the suffix id
+		*/
+		public int intern(CharSequence s, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) hash = 31 * hash + s.charAt(i);
+			int mask = slots.length - 1;
+			int slot = hash & mask;
+			for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+				int id = slots[slot] - 1;
+				if (hashes[id] == hash && regionEquals(suffixes[id], s, start, end)) {
+					return id;
+				}
+			}
+			
+			// adds the suffix
+			if (count == suffixes.length) {
+				suffixes = Arrays.copyOf(suffixes, count * 2);
+				hashes = Arrays.copyOf(hashes, count * 2);
+				thirds = Arrays.copyOf(thirds, count * 2);
+				fifths = Arrays.copyOf(fifths, count * 2);
+			}
+			String suffix = s.subSequence(start, end).toString();
+			suffixes[count] = suffix;
+			hashes[count] = hash;
+			setIntervals(count, suffix);
+			slots[slot] = ++count;
+			// keeps the table at most half full
+			if (count * 2 > slots.length) {
+				slots = new int[slots.length * 2];
+				mask = slots.length - 1;
+				for (int id = 0; id < count; id++) {
+					for (slot = hashes[id] & mask; slots[slot] != 0; 
+						slot = (slot + 1) & mask);
+					slots[slot] = id + 1;
+				}
+			}
+			return count - 1;
+		}
+		
+		/** Works out the third and fifth that a suffix implies.
+		 * Chords are major unless the suffix marks them as minor, 
+		 * diminished, half-diminished, augmented, suspended, or a bare 
+		 * fifth, and a flattened or sharpened fifth overrides the fifth.
+		 * @param id the suffix id
+		 * @param suffix the suffix
+		*/
+		private void setIntervals(int id, String suffix) {
+			int third = 4;
+			int fifth = 7;
+			if (suffix.startsWith("maj") || suffix.startsWith("M")) {
+				third = 4;
+			} else if (suffix.startsWith("dim") || suffix.startsWith("o")
+				|| suffix.startsWith("\u00f8")) {
+				third = 3;
+				fifth = 6;
+			} else if (suffix.startsWith("aug") || suffix.startsWith("+")) {
+				fifth = 8;
+			} else if (suffix.startsWith("m") || suffix.startsWith("-")) {
+				third = 3;
+			} else if (suffix.equals("5")) {
+				third = 0;
+			}
+			// such as the diminished fifth of a half-diminished "m7b5"
+			if (suffix.indexOf("b5") != -1) {
+				fifth = 6;
+			} else if (suffix.indexOf("#5") != -1) {
+				fifth = 8;
+			}
+			if (suffix.indexOf("sus2") != -1) {
+				third = 2;
+			} else if (suffix.indexOf("sus") != -1) {
+				third = 5;
+			}
+			thirds[id] = third;
+			fifths[id] = fifth;
+		}
+		
+		/** Checks whether a suffix matches a region of text.
+		 * @param suffix the suffix
+		 * @param s the text
+		 * @param start the starting index of the region
+		 * @param end the ending index of the region, noninclusive
+		 * @return true if the chars are the same
+		*/
+		private static boolean regionEquals(String suffix, CharSequence s, 
+			int start, int end) {
+			if (suffix.length() != end - start) return false;
+			for (int i = start; i < end; i++) {
+				if (suffix.charAt(i - start) != s.charAt(i)) return false;
+			}
+			return true;
+		}
+	}
+
+}
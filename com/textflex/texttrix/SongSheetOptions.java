@@ -0,0 +1,330 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.util.*;
+
+/** Options for converting song sheets.
+ * Gathers the choices from the Song Sheet Maker's dialog window, or 
+ * from any other source, into a single object that can't be changed
+ * once constructed, so that it can be freely shared and compared.
+ * The chord suffixes and the chordal line converter are compiled along
+ * with the options, so that every engine and thread using the same
+ * options shares them without building them again.
+*/
+public class SongSheetOptions {
+	
+	/** Default list of chord suffixes */
+	public static final String DEFAULT_CHORD_INDICATORS = "#,b,/,sus,aug,dim,m";
+	
+	private final String chordIndicatorsList; // list of chord suffixes
+	private final int threshold; // num of chords to check, if possible
+	private final boolean transpose; // flag for transpose mode
+	private final int transposeSteps; // number of full steps to transpose up
+	// flag to transpose an extra half step up
+	private final boolean transposeHalfStep; 
+	private final boolean selectedRegion; // flag for selected region only
+	// flag to keep transposed chords above the same lyrics
+	private final boolean alignChords;
+	// flag to recognize chords by their grammar rather than their suffixes
+	private final boolean strictChords;
+	
+	/* Compiled forms */
+	private final ChordSuffixMatcher chordSuffixes; // compiled suffixes
+	// grammar of whole chords in strict mode; null otherwise
+	private final ChordGrammar chordGrammar;
+	// transposes or removes the chordal lines
+	private final ChordLineConverter chordLines;
+	// grammar of whole chords in any mode, compiled when first needed
+	private ChordGrammar wholeChords = null;
+	// the equivalent normal form, computed when first needed
+	private SongSheetOptions normalized = null;
+	
+	/** Constructs the options with the same defaults as the dialog window:
+	 * the default chord suffixes, two chords checked per line, and
+	 * transposition by one full step over the entire text.
+	*/
+	public SongSheetOptions() {
+		this(DEFAULT_CHORD_INDICATORS, 2, true, 1, false, false);
+	}
+	
+	/** Constructs the options.
+	 * @param chordIndicatorsList comma-delimited list of chord suffixes
+	 * @param threshold num of words to check per line before considering
+	 * it chordal; 0 to check all of them
+	 * @param transpose true to transpose chord lines, false to remove them
+	 * @param transposeSteps number of full steps to transpose up
+	 * @param transposeHalfStep true to transpose an extra half step up
+	 * @param selectedRegion true to work only on the selected region
+	*/
+	public SongSheetOptions(
+		String chordIndicatorsList,
+		int threshold,
+		boolean transpose,
+		int transposeSteps,
+		boolean transposeHalfStep,
+		boolean selectedRegion) {
+		this(chordIndicatorsList, threshold, transpose, transposeSteps,
+			transposeHalfStep, selectedRegion, false);
+	}
+	
+	/** Constructs the options, including whether to keep transposed
+	 * chords aligned.
+	 * @param chordIndicatorsList comma-delimited list of chord suffixes
+	 * @param threshold num of words to check per line before considering
+	 * it chordal; 0 to check all of them
+	 * @param transpose true to transpose chord lines, false to remove them
+	 * @param transposeSteps number of full steps to transpose up
+	 * @param transposeHalfStep true to transpose an extra half step up
+	 * @param selectedRegion true to work only on the selected region
+	 * @param alignChords true to keep transposed chords in their columns
+	*/
+	public SongSheetOptions(
+		String chordIndicatorsList,
+		int threshold,
+		boolean transpose,
+		int transposeSteps,
+		boolean transposeHalfStep,
+		boolean selectedRegion,
+		boolean alignChords) {
+		this(chordIndicatorsList, threshold, transpose, transposeSteps,
+			transposeHalfStep, selectedRegion, alignChords, false);
+	}
+	
+	/** Constructs the options, including whether to recognize chords by
+	 * their grammar.
+	 * @param chordIndicatorsList comma-delimited list of chord suffixes,
+	 * which in strict mode are accepted as chord qualities
+	 * @param threshold num of words to check per line before considering
+	 * it chordal; 0 to check all of them
+	 * @param transpose true to transpose chord lines, false to remove them
+	 * @param transposeSteps number of full steps to transpose up
+	 * @param transposeHalfStep true to transpose an extra half step up
+	 * @param selectedRegion true to work only on the selected region
+	 * @param alignChords true to keep transposed chords in their columns
+	 * @param strictChords true to accept only words that match the
+	 * {@link ChordGrammar} as chords, and to transpose only their family
+	 * names and bass notes
+	*/
+	public SongSheetOptions(
+		String chordIndicatorsList,
+		int threshold,
+		boolean transpose,
+		int transposeSteps,
+		boolean transposeHalfStep,
+		boolean selectedRegion,
+		boolean alignChords,
+		boolean strictChords) {
+		if (chordIndicatorsList == null) {
+			throw new NullPointerException("chordIndicatorsList");
+		}
+		this.chordIndicatorsList = chordIndicatorsList;
+		this.threshold = threshold;
+		this.transpose = transpose;
+		this.transposeSteps = transposeSteps;
+		this.transposeHalfStep = transposeHalfStep;
+		this.selectedRegion = selectedRegion;
+		this.alignChords = alignChords;
+		this.strictChords = strictChords;
+		chordSuffixes = new ChordSuffixMatcher(chordIndicatorsList);
+		chordGrammar = strictChords ? new ChordGrammar(chordIndicatorsList) : null;
+		chordLines = transpose 
+			? (ChordLineConverter) new ChordTransposer(transposeSteps, 
+				transposeHalfStep, alignChords, chordGrammar)
+			: new ChordRemover();
+	}
+	
+	/**Gets the chord indicators.
+	 * @return the comma-delimited list of chord indicators
+	*/
+	public String getChordIndicatorsList() { return chordIndicatorsList; }
+	
+	/**Gets the threshold.
+	 * @return the num of words to check per line; 0 for all of them
+	*/
+	public int getThreshold() { return threshold; }
+	
+	/**Gets the transpose flag.
+	 * @return true to transpose chord lines, false to remove them
+	*/
+	public boolean getTranspose() { return transpose; }
+	
+	/** Gets the number of steps.
+	 * @return the number of full steps to transpose up
+	*/
+	public int getSteps() { return transposeSteps; }
+	
+	/** Gets the half-step flag.
+	 * @return true if half-step should be added
+	*/
+	public boolean getHalfStep() { return transposeHalfStep; }
+	
+	/**Gets the selected region flag.
+	 * @return flag to only work on the selected region
+	*/
+	public boolean getSelectedRegion() { return selectedRegion; }
+	
+	/** Gets the chord alignment flag.
+	 * @return true to keep transposed chords in their columns
+	*/
+	public boolean getAlignChords() { return alignChords; }
+	
+	/** Gets the strict chords flag.
+	 * @return true to recognize chords by their grammar
+	*/
+	public boolean getStrictChords() { return strictChords; }
+	
+	/** Gets the compiled chord suffixes.
+	 * @return the suffixes from the chord indicators list
+	*/
+	public ChordSuffixMatcher getChordSuffixes() { return chordSuffixes; }
+	
+	/** Gets the compiled chord grammar.
+	 * @return the grammar in strict mode; null otherwise
+	*/
+	public ChordGrammar getChordGrammar() { return chordGrammar; }
+	
+	/** Gets the grammar of whole chords whether or not in strict mode,
+	 * for telling chords in brackets from other bracketed text.
+	 * Compiled once per options, when first needed.
+	 * @return the strict mode grammar in strict mode, and a grammar 
+	 * compiled from the same chord suffixes otherwise
+	*/
+	public ChordGrammar getWholeChordGrammar() {
+		ChordGrammar grammar = wholeChords;
+		if (grammar != null) return grammar;
+		grammar = (chordGrammar != null) ? chordGrammar 
+			: new ChordGrammar(chordIndicatorsList);
+		// the grammar is immutable, so racing threads at worst compile it
+		// more than once
+		wholeChords = grammar;
+		return grammar;
+	}
+	
+	/** Gets the converter for chordal lines.
+	 * @return a <code>ChordTransposer</code> in transpose mode, and a 
+	 * <code>ChordRemover</code> otherwise
+	*/
+	public ChordLineConverter getChordLineConverter() { return chordLines; }
+	
+	/** Gets the equivalent options in a normal form, so that options 
+	 * that convert every song sheet in the same way are equal.  The chord
+	 * suffixes are sorted without duplicates or empty entries, the 
+	 * threshold is given as the number of words actually checked, and the
+	 * steps are reduced to a transposition within an octave, or dropped
+	 * along with the chord alignment when removing chords.
+	 * @return the normalized options
+	*/
+	public SongSheetOptions normalize() {
+		SongSheetOptions norm = normalized;
+		if (norm != null) return norm;
+		
+		// sorts the suffixes, which only match in the order of their text
+		TreeSet<String> suffixes = new TreeSet<String>(
+			Arrays.asList(ChordClassifier.createArrayFromList(chordIndicatorsList)));
+		suffixes.remove("");
+		StringBuilder list = new StringBuilder();
+		for (Iterator<String> it = suffixes.iterator(); it.hasNext(); ) {
+			list.append(it.next());
+			if (it.hasNext()) list.append(',');
+		}
+		// every line has at least one word checked, and 0 checks up to 1000
+		int normThreshold = (threshold == 0) ? 1000 : Math.max(threshold, 1);
+		int steps = 0;
+		boolean halfStep = false;
+		if (transpose) {
+			int shift = (2 * transposeSteps + (transposeHalfStep ? 1 : 0)) % 12;
+			if (shift < 0) shift += 12;
+			steps = shift / 2;
+			halfStep = shift % 2 == 1;
+		}
+		norm = new SongSheetOptions(list.toString(), normThreshold, transpose,
+			steps, halfStep, selectedRegion, transpose && alignChords, 
+			strictChords);
+		if (norm.equals(this)) norm = this;
+		norm.normalized = norm;
+		normalized = norm;
+		return norm;
+	}
+	
+	/** Compares the options with another set of options.
+	 * @param obj the object to compare
+	 * @return true if <code>obj</code> holds the same options
+	*/
+	public boolean equals(Object obj) {
+		if (obj == this) return true;
+		if (!(obj instanceof SongSheetOptions)) return false;
+		SongSheetOptions other = (SongSheetOptions) obj;
+		return chordIndicatorsList.equals(other.chordIndicatorsList)
+			&& threshold == other.threshold
+			&& transpose == other.transpose
+			&& transposeSteps == other.transposeSteps
+			&& transposeHalfStep == other.transposeHalfStep
+			&& selectedRegion == other.selectedRegion
+			&& alignChords == other.alignChords
+			&& strictChords == other.strictChords;
+	}
+	
+	/** Gets a hash code consistent with {@link #equals(Object)}.
+	 * @return the hash code
+	*/
+	public int hashCode() {
+		int hash = chordIndicatorsList.hashCode();
+		hash = 31 * hash + threshold;
+		hash = 31 * hash + (transpose ? 1 : 0);
+		hash = 31 * hash + transposeSteps;
+		hash = 31 * hash + (transposeHalfStep ? 1 : 0);
+		hash = 31 * hash + (selectedRegion ? 1 : 0);
+		hash = 31 * hash + (alignChords ? 1 : 0);
+		return 31 * hash + (strictChords ? 1 : 0);
+	}
+	
+	/** Describes the options.
+	 * @return the options as a string
+	*/
+	public String toString() {
+		return "SongSheetOptions[chordIndicatorsList=" + chordIndicatorsList
+			+ ",threshold=" + threshold
+			+ ",transpose=" + transpose
+			+ ",transposeSteps=" + transposeSteps
+			+ ",transposeHalfStep=" + transposeHalfStep
+			+ ",selectedRegion=" + selectedRegion
+			+ ",alignChords=" + alignChords
+			+ ",strictChords=" + strictChords + "]";
+	}
+
+}
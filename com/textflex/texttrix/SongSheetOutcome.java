@@ -0,0 +1,79 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+/** The outcome of converting a song sheet.
+ * Carries the converted text, when it was kept in memory, together 
+ * with the counts that the Song Sheet Maker reports, so that callers
+ * on any thread receive their own results.
+*/
+public class SongSheetOutcome {
+	
+	private final String text; // the converted text, if any
+	private final long linesRead; // num of lines read
+	private final long linesChanged; // num of lines kept or transposed
+	
+	/** Constructs an outcome.
+	 * @param text the converted text; null if it was written to a stream
+	 * @param linesRead the number of lines read
+	 * @param linesChanged the number of lines kept, whether or not 
+	 * transposed
+	*/
+	public SongSheetOutcome(String text, long linesRead, long linesChanged) {
+		this.text = text;
+		this.linesRead = linesRead;
+		this.linesChanged = linesChanged;
+	}
+	
+	/** Gets the converted text.
+	 * @return the text; null if it was written to a stream instead
+	*/
+	public String getText() { return text; }
+	
+	/** Gets the number of lines read, whether kept, transposed, or removed.
+	 * @return the number of lines read
+	*/
+	public long getLinesRead() { return linesRead; }
+	
+	/** Gets the number of lines changed.
+	 * Counts every line written to the output, whether kept as it was
+	 * or transposed.
+	 * @return the number of lines changed
+	*/
+	public long getLinesChanged() { return linesChanged; }
+
+}
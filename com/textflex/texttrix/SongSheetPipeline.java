@@ -0,0 +1,462 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is the Text Trix code.
+ *
+ * The Initial Developer of the Original Code is
+ * Text Flex.
+ * Portions created by the Initial Developer are Copyright (C) 2003-6
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s): David Young <dvd@textflex.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.textflex.texttrix;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Converts a tree of song sheet files through a pipeline of reading,
+ * converting, and writing stages.
+ * Each stage has its own workers and passes each file on to the next
+ * stage through a bounded queue, so that files are read and written 
+ * while others are being converted, and a stage that falls behind makes
+ * the stages before it wait rather than piling up files in memory.  
+ * Each file is converted whole, just as the plug-in converts a document,
+ * by {@link SongSheetEngine#run(String, int, int)}.  Every stage counts
+ * the files and chars it handles, the time its workers spend busy, and 
+ * the depth of the queue feeding it.
+*/
+public class SongSheetPipeline {
+	
+	/* Stages */
+	/** Stage reading the files */
+	public static final int READ = 0;
+	/** Stage converting the text */
+	public static final int CONVERT = 1;
+	/** Stage writing the files */
+	public static final int WRITE = 2;
+	/** Number of stages */
+	public static final int NUM_STAGES = 3;
+	private static final String[] STAGE_NAMES = { "read", "convert", "write" };
+	// marks the end of the files in a queue
+	private static final Job END = new Job(null, null);
+	
+	private final SongSheetEngine engine; // converts each file
+	private final Charset charset; // character set of the files
+	private final int[] workers; // num of workers in each stage
+	private final int queueCapacity; // most files waiting for each stage
+	
+	/* Results of the last tree */
+	private AtomicLong linesRead = new AtomicLong(); // num of lines read
+	private AtomicLong filesFailed = new AtomicLong(); // num of files failed
+	private StageStats[] stats = new StageStats[NUM_STAGES];
+	private long wallNanos = 0; // time taken by the last tree
+	
+	/** Constructs a pipeline.
+	 * @param engine the engine with which to convert each file
+	 * @param charset the character set of the files
+	 * @param readers the number of workers reading files
+	 * @param converters the number of workers converting files
+	 * @param writers the number of workers writing files
+	 * @param queueCapacity the most files that may wait for each stage
+	*/
+	public SongSheetPipeline(SongSheetEngine engine, Charset charset, 
+		int readers, int converters, int writers, int queueCapacity) {
+		if (readers < 1 || converters < 1 || writers < 1) {
+			throw new IllegalArgumentException(
+				"Each stage needs at least 1 worker");
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queues must hold at least 1 file");
+		}
+		this.engine = engine;
+		this.charset = charset;
+		workers = new int[] { readers, converters, writers };
+		this.queueCapacity = queueCapacity;
+		for (int i = 0; i < NUM_STAGES; i++) stats[i] = new StageStats();
+	}
+	
+	/** Converts every file in a directory tree.
+	 * Blocks until all of the files have been converted.  Files that 
+	 * fail to convert are reported to the standard error stream and 
+	 * counted, without stopping the rest of the pipeline.  An output 
+	 * directory inside the input tree is skipped rather than converted 
+	 * into itself.
+	 * @param inDir the root of the tree to convert
+	 * @param outDir the directory in which to mirror the converted tree
+	 * @throws InterruptedException if interrupted while waiting for files
+	 * to finish converting, in which case the workers are stopped too
+	*/
+	public void convertTree(File inDir, File outDir) 
+		throws InterruptedException {
+		long start = System.nanoTime();
+		linesRead.set(0);
+		filesFailed.set(0);
+		for (int i = 0; i < NUM_STAGES; i++) stats[i] = new StageStats();
+		ArrayList<BlockingQueue<Job>> queues = 
+			new ArrayList<BlockingQueue<Job>>();
+		for (int i = 0; i < NUM_STAGES; i++) {
+			queues.add(new ArrayBlockingQueue<Job>(queueCapacity));
+		}
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int stage = 0; stage < NUM_STAGES; stage++) {
+			BlockingQueue<Job> next = 
+				(stage + 1 < NUM_STAGES) ? queues.get(stage + 1) : null;
+			int nextWorkers = (next == null) ? 0 : workers[stage + 1];
+			AtomicInteger remaining = new AtomicInteger(workers[stage]);
+			// one end is queued for each worker in the stage
+			AtomicInteger endsLeft = new AtomicInteger(workers[stage]);
+			for (int i = 0; i < workers[stage]; i++) {
+				Thread thread = new Thread(new Worker(stage, queues.get(stage), 
+					next, nextWorkers, remaining, endsLeft), 
+					"song-sheet-" + STAGE_NAMES[stage] + "-" + (i + 1));
+				threads.add(thread);
+				thread.start();
+			}
+		}
+		try {
+			submitTree(inDir, outDir, SongSheetBatch.toCanonical(outDir), 
+				queues.get(READ));
+			for (int i = 0; i < workers[READ]; i++) queues.get(READ).put(END);
+			for (int i = 0; i < threads.size(); i++) threads.get(i).join();
+		} catch (InterruptedException e) {
+			for (int i = 0; i < threads.size(); i++) threads.get(i).interrupt();
+			throw e;
+		} finally {
+			wallNanos = System.nanoTime() - start;
+		}
+	}
+	
+	/** Queues every file in a directory tree for reading.
+	 * Waits whenever the queue is full.
+	 * @param dir the directory to convert
+	 * @param outDir the directory in which to mirror the converted tree
+	 * @param outRoot the canonical root of the output tree, to skip
+	 * @param queue the queue feeding the reading stage
+	 * @throws InterruptedException if interrupted while waiting
+	*/
+	private void submitTree(File dir, File outDir, File outRoot, 
+		BlockingQueue<Job> queue) throws InterruptedException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			System.err.println(dir + ": unable to list directory");
+			filesFailed.incrementAndGet();
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			File in = files[i];
+			File out = new File(outDir, in.getName());
+			if (in.isDirectory()) {
+				if (!SongSheetBatch.toCanonical(in).equals(outRoot)) {
+					submitTree(in, out, outRoot, queue);
+				}
+			} else if (in.isFile()) {
+				queue.put(new Job(in, out));
+			}
+		}
+	}
+	
+	/** Reads a file into its job.
+	 * @param job the job holding the file
+	 * @throws IOException if the file can't be read
+	*/
+	private void read(Job job) throws IOException {
+		StringBuilder text = new StringBuilder((int) Math.min(job.in.length(), 
+			Integer.MAX_VALUE));
+		// reports malformed input, as the engine's channel readers do
+		Reader reader = new InputStreamReader(new FileInputStream(job.in), 
+			charset.newDecoder());
+		try {
+			char[] buf = new char[8192];
+			for (int len; (len = reader.read(buf)) != -1;) {
+				text.append(buf, 0, len);
+			}
+		} finally {
+			reader.close();
+		}
+		job.text = text.toString();
+	}
+	
+	/** Converts the text of a job.
+	 * @param job the job holding the text
+	*/
+	private void convert(Job job) {
+		SongSheetOutcome outcome = engine.run(job.text, 0, 0);
+		job.text = outcome.getText();
+		linesRead.addAndGet(outcome.getLinesRead());
+	}
+	
+	/** Writes the converted text of a job.
+	 * Writes to a temporary file first, as the batch converter does, so 
+	 * that a failed write leaves no partial file behind.
+	 * @param job the job holding the text
+	 * @throws IOException if the file can't be written
+	*/
+	private void write(Job job) throws IOException {
+		File part = SongSheetBatch.createPartFile(job.out);
+		boolean moved = false;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(part), 
+				charset.newEncoder());
+			try {
+				writer.write(job.text);
+			} finally {
+				writer.close();
+			}
+			SongSheetBatch.moveIntoPlace(part, job.out);
+			moved = true;
+		} finally {
+			if (!moved) part.delete();
+		}
+	}
+	
+	/** Gets the number of files converted in the last tree.
+	 * @return the number of files written
+	*/
+	public long getFilesConverted() { return stats[WRITE].items.get(); }
+	
+	/** Gets the number of lines read in the last tree.
+	 * @return the number of lines read from the files converted
+	*/
+	public long getLinesRead() { return linesRead.get(); }
+	
+	/** Gets the number of files in the last tree that failed to convert.
+	 * @return the number of failed files
+	*/
+	public long getFilesFailed() { return filesFailed.get(); }
+	
+	/** Gets the number of files a stage handled in the last tree.
+	 * @param stage the stage, such as {@link #CONVERT}
+	 * @return the number of files
+	*/
+	public long getItems(int stage) { return stats[stage].items.get(); }
+	
+	/** Gets the number of chars a stage handled in the last tree.
+	 * @param stage the stage, such as {@link #CONVERT}
+	 * @return the number of chars read, converted, or written
+	*/
+	public long getChars(int stage) { return stats[stage].chars.get(); }
+	
+	/** Gets the time a stage's workers spent busy in the last tree.
+	 * @param stage the stage, such as {@link #CONVERT}
+	 * @return the nanoseconds spent, totalled across the workers
+	*/
+	public long getBusyNanos(int stage) { return stats[stage].busyNanos.get(); }
+	
+	/** Gets the average number of files waiting for a stage, as seen each
+	 * time one of its workers took a file.
+	 * @param stage the stage, such as {@link #CONVERT}
+	 * @return the average queue depth
+	*/
+	public double getAverageQueueDepth(int stage) {
+		long samples = stats[stage].depthSamples.get();
+		return (samples == 0) ? 0 : stats[stage].depthSum.get() / (double) samples;
+	}
+	
+	/** Gets the most files waiting for a stage, as seen each time one of
+	 * its workers took a file.
+	 * @param stage the stage, such as {@link #CONVERT}
+	 * @return the maximum queue depth
+	*/
+	public int getMaxQueueDepth(int stage) { return stats[stage].maxDepth.get(); }
+	
+	/** Describes the throughput and queue depth of each stage of the 
+	 * last tree converted.
+	 * @return a line per stage
+	*/
+	public String getReport() {
+		double secs = Math.max(wallNanos, 1) / 1e9;
+		StringBuilder report = new StringBuilder();
+		for (int stage = 0; stage < NUM_STAGES; stage++) {
+			StageStats stageStats = stats[stage];
+			double busy = stageStats.busyNanos.get() 
+				/ (Math.max(wallNanos, 1) * (double) workers[stage]);
+			report.append(STAGE_NAMES[stage]).append(" (")
+				.append(workers[stage]).append(" workers): ")
+				.append(Math.round(stageStats.items.get() / secs))
+				.append(" files/s, ")
+				.append(Math.round(stageStats.chars.get() / secs))
+				.append(" chars/s, ")
+				.append(Math.round(busy * 100)).append("% busy, queue avg ")
+				.append(Math.round(getAverageQueueDepth(stage) * 10) / 10.0)
+				.append(" max ").append(getMaxQueueDepth(stage))
+				.append('\n');
+		}
+		return report.toString();
+	}
+	
+	/** A file passing through the pipeline.
+	*/
+	private static class Job {
+		private File in = null; // the file to convert
+		private File out = null; // the file to write
+		private String text = null; // the text read or converted
+		
+		/** Constructs a job.
+		 * @param in the file to convert
+		 * @param out the file to write
+		*/
+		public Job(File in, File out) {
+			this.in = in;
+			this.out = out;
+		}
+	}
+	
+	/** The counts of a single stage, updated by all of its workers.
+	*/
+	private static class StageStats {
+		private AtomicLong items = new AtomicLong(); // num of files handled
+		private AtomicLong chars = new AtomicLong(); // num of chars handled
+		private AtomicLong busyNanos = new AtomicLong(); // time spent busy
+		// queue depths seen by the workers, and the num of times seen
+		private AtomicLong depthSum = new AtomicLong();
+		private AtomicLong depthSamples = new AtomicLong();
+		private AtomicInteger maxDepth = new AtomicInteger();
+		
+		/** Records the depth of the stage's queue.
+		 * @param depth the number of files waiting
+		*/
+		public void addDepth(int depth) {
+			depthSum.addAndGet(depth);
+			depthSamples.incrementAndGet();
+			int max = maxDepth.get();
+			while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+				max = maxDepth.get();
+			}
+		}
+	}
+	
+	/** A worker in one stage, taking files from the stage's queue until
+	 * the end of the files, and passing each on to the next stage.
+	*/
+	private class Worker implements Runnable {
+		private int stage = 0; // the stage, such as READ
+		private BlockingQueue<Job> queue = null; // files for the stage
+		private BlockingQueue<Job> next = null; // files for the next stage
+		private int nextWorkers = 0; // num of workers in the next stage
+		// num of workers in this stage still running
+		private AtomicInteger remaining = null;
+		// num of ends still to be taken from the stage's queue
+		private AtomicInteger endsLeft = null;
+		
+		/** Constructs a worker.
+		 * @param stage the stage, such as {@link #READ}
+		 * @param queue the queue feeding the stage
+		 * @param next the queue feeding the next stage; null for the last
+		 * stage
+		 * @param nextWorkers the number of workers in the next stage
+		 * @param remaining the number of workers in the stage still running,
+		 * shared by all of them
+		*/
+		public Worker(int stage, BlockingQueue<Job> queue, 
+			BlockingQueue<Job> next, int nextWorkers, AtomicInteger remaining,
+			AtomicInteger endsLeft) {
+			this.stage = stage;
+			this.queue = queue;
+			this.next = next;
+			this.nextWorkers = nextWorkers;
+			this.remaining = remaining;
+			this.endsLeft = endsLeft;
+		}
+		
+		/** Handles files until the end of the files, then passes the end 
+		 * on to the next stage once every worker in this stage is done,
+		 * including any worker killed by an error.
+		*/
+		public void run() {
+			StageStats stageStats = stats[stage];
+			try {
+				for (Job job; (job = queue.take()) != END;) {
+					stageStats.addDepth(queue.size());
+					long start = System.nanoTime();
+					try {
+						if (stage == READ) {
+							read(job);
+						} else if (stage == CONVERT) {
+							convert(job);
+						} else {
+							write(job);
+						}
+					} catch (IOException e) {
+						System.err.println(job.in + ": " + e.getMessage());
+						filesFailed.incrementAndGet();
+						continue;
+					} catch (RuntimeException e) {
+						System.err.println(job.in + ": " + e);
+						filesFailed.incrementAndGet();
+						continue;
+					} catch (Error e) {
+						// counts the file but still lets the error end the worker
+						System.err.println(job.in + ": " + e);
+						filesFailed.incrementAndGet();
+						throw e;
+					} finally {
+						stageStats.busyNanos.addAndGet(System.nanoTime() - start);
+					}
+					stageStats.chars.addAndGet(job.text.length());
+					stageStats.items.incrementAndGet();
+					if (next != null) next.put(job);
+				}
+				endsLeft.decrementAndGet();
+			} catch (InterruptedException e) {
+				// stops along with the rest of the pipeline
+				Thread.currentThread().interrupt();
+			} finally {
+				if (remaining.decrementAndGet() == 0) finishStage();
+			}
+		}
+		
+		/** Finishes the stage once its last worker is done.
+		 * Drains any files and ends left in the queue by workers killed by
+		 * an error, so that the stage before never waits on a full queue,
+		 * and then passes the end on to the next stage.
+		*/
+		private void finishStage() {
+			try {
+				while (endsLeft.get() > 0) {
+					Job job = queue.take();
+					if (job == END) {
+						endsLeft.decrementAndGet();
+					} else {
+						System.err.println(job.in + ": not converted after a " 
+							+ STAGE_NAMES[stage] + " worker failed");
+						filesFailed.incrementAndGet();
+					}
+				}
+				if (next != null) {
+					for (int i = 0; i < nextWorkers; i++) next.put(END);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}